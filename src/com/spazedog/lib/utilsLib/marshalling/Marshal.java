@@ -3,19 +3,56 @@ package com.spazedog.lib.utilsLib.marshalling;
 import com.spazedog.lib.utilsLib.collection.SwiftList;
 import com.spazedog.lib.utilsLib.collection.SwiftMap;
 import com.spazedog.lib.utilsLib.collection.SwiftSet;
+import com.spazedog.lib.utilsLib.collection.SwiftStack;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.io.Serializable;
 import java.io.Writer;
 import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
 import java.util.Set;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  *
@@ -43,1289 +80,6733 @@ public final class Marshal {
     private static final int TYPE_FLOATARRAY = 17;
     private static final int TYPE_SERIALIZEABLE = 18;
     private static final int TYPE_SERIALIZEABLEARRAY = 19;
+    private static final int TYPE_ADAPTER = 20;
     private static final int TYPE_OBJECTARRAY = 512;
     private static final int TYPE_LIST = 768;
+    private static final int TYPE_TYPEDLIST = 769;
     private static final int TYPE_MAP = 788;
+    private static final int TYPE_TYPEDMAP = 789;
     private static final int TYPE_SET = 798;
+    private static final int TYPE_TYPEDSET = 799;
+
+    private static final byte WIRE_INT = 1;
+    private static final byte WIRE_LONG = 2;
+    private static final byte WIRE_FLOAT = 3;
+    private static final byte WIRE_DOUBLE = 4;
+    private static final byte WIRE_BYTE = 5;
+    private static final byte WIRE_CHAR = 6;
+    private static final byte WIRE_STRING = 7;
+    private static final byte WIRE_DEFINE = 8;
+    private static final byte WIRE_REFERENCE = 9;
+    private static final byte WIRE_BACKREF = 10;
+    private static final byte WIRE_INTARRAY = 11;
+    private static final byte WIRE_LONGARRAY = 12;
+    private static final byte WIRE_FLOATARRAY = 13;
+    private static final byte WIRE_DOUBLEARRAY = 14;
+    private static final byte WIRE_BYTEARRAY = 15;
+    private static final byte WIRE_CHARARRAY = 16;
+    private static final byte WIRE_BEGIN = 20;
+    private static final byte WIRE_END = 21;
+    private static final byte WIRE_INDEX = 22;
+    private static final byte WIRE_FIELD = 23;
+    private static final byte WIRE_SPAN = 24;
+    private static final byte WIRE_SEGMENT = 25;
 
     /** @ignore */
-    private static int SCHEMA_VERSION = 1;
+    private static int SCHEMA_VERSION = 12;
 
     /** @ignore */
-    private static Pattern INPUT_MATCHER = Pattern.compile("^[0-9]+:((-?[0-9.]+[Ee][+-][0-9]+[fd])|(-?[0-9]+[il])|([0-9]+[bc]))+$");
+    private static final int BINARY_MAGIC = 0x8A;
 
     /** @ignore */
-    private int mPointer = 0;
+    private static final int BINARY_BUFFER_SIZE = 8192;
 
     /** @ignore */
-    private List<Object> mData = new SwiftList<Object>();
+    private static final int HEADER_FLAGS_VERSION = 7;
 
-    /**
-     *
-     */
-    public Marshal() {}
+    /** @ignore */
+    private static final int FLAG_COMPRESSED = 0x01;
 
-    /**
-     * @param input
-     * 		A parcel generated string
-     */
-    public Marshal(String input) {
-        if (input != null && INPUT_MATCHER.matcher(input).matches()) {
-            input = input.trim();
+    /** @ignore */
+    private static final int FLAG_INDEXED = 0x02;
+
+    /** @ignore */
+    private static final int COMPRESSION_BLOCK_SIZE = 65536;
+
+    /** @ignore */
+    private static final int INITIAL_CAPACITY = 64;
 
-            char c;
-            StringBuilder builder = new StringBuilder();
-            int length = input.length();
+    /** @ignore */
+    private static final float BUFFER_RESIZE = 1.5f;
 
-            for (int i=0; i < length; i++) {
-                c = input.charAt(i);
+    /** @ignore */
+    private static final int DICTIONARY_SIZE = 4096;
 
-                if (c == 'i') {
-                    mData.add(Integer.valueOf(builder.toString()));
+    /** @ignore */
+    private static final int DICTIONARY_MIN_LENGTH = 2;
 
-                } else if (c == 'l') {
-                    mData.add(Long.valueOf(builder.toString()));
+    /** @ignore */
+    private static final int DICTIONARY_MAX_LENGTH = 256;
 
-                } else if (c == 'f') {
-                    mData.add(Float.parseFloat(builder.toString()));
+    /** @ignore */
+    private static final int TEXT_TOKEN_SIZE = 32;
 
-                } else if (c == 'd') {
-                    mData.add(Double.parseDouble(builder.toString()));
+    /** @ignore */
+    private static final int SPAN_MIN_COUNT = 16;
 
-                } else if (c == 'b') {
-                    mData.add((byte) (Integer.valueOf(builder.toString()) & 0xFF));
+    /** @ignore */
+    private static final int PARALLEL_MIN_COUNT = 4096;
 
-                } else if (c == 'c') {
-                    mData.add((char) (Integer.valueOf(builder.toString()) & 0xFFFF));
+    /** @ignore */
+    private static final int SEGMENT_SIZE = 1024;
 
-                } else if (c == ':') {
-                    // Marshalled version, not important at the moment
+    /** @ignore */
+    private static final int TYPED_MIN_COUNT = 2;
 
-                } else {
-                    builder.append(c); continue;
-                }
+    /** @ignore */
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
 
-                builder.setLength(0);
-            }
+    /** @ignore */
+    private static final ConcurrentHashMap<String, Marshalable.Creator<?>> CREATORS = new ConcurrentHashMap<String, Marshalable.Creator<?>>();
 
-        } else if (input != null && input.length() > 0) {
-            throw new RuntimeException("The given string is not a valid marshalled string\n" + input);
-        }
-    }
+    /** @ignore */
+    private static final Marshalable.Creator<?> NO_CREATOR = new ConstructorCreator(null);
+
+    /** @ignore */
+    private static final ConcurrentHashMap<String, MarshalAdapter<?>> ADAPTERS = new ConcurrentHashMap<String, MarshalAdapter<?>>();
+
+    /** @ignore */
+    private static final ConcurrentHashMap<Class<?>, Dispatch> DISPATCH = new ConcurrentHashMap<Class<?>, Dispatch>();
+
+    /** @ignore */
+    private static volatile int sDispatchGeneration = 0;
+
+    /** @ignore */
+    private static final Object IN_PROGRESS = new Object();
 
     /**
-     *
+     * Deflate compression, as provided by {@link Deflater}
      */
-    public Marshal(Reader input) {
-        char c;
-        StringBuilder builder = new StringBuilder();
-        char[] buffer = new char[256];
-        int length = 0;
+    public static final MarshalCompressor DEFLATE = new DeflateCompressor(Deflater.DEFAULT_COMPRESSION);
 
-        try {
-            while ((length = input.read(buffer)) > 0) {
-                for (int i=0; i < length; i++) {
-                    c = buffer[i];
+    /** @ignore */
+    private static final ConcurrentHashMap<Integer, MarshalCompressor> COMPRESSORS = new ConcurrentHashMap<Integer, MarshalCompressor>();
 
-                    if (c == 'i') {
-                        mData.add(Integer.valueOf(builder.toString()));
+    /** @ignore */
+    private static final int POOL_SIZE = 16;
 
-                    } else if (c == 'l') {
-                        mData.add(Long.valueOf(builder.toString()));
+    /** @ignore */
+    private static final int POOL_MAX_CAPACITY = 1024 * 1024;
 
-                    } else if (c == 'f') {
-                        mData.add(Float.parseFloat(builder.toString()));
+    /** @ignore */
+    private static final SwiftStack<Marshal> POOL = new SwiftStack<Marshal>(POOL_SIZE);
 
-                    } else if (c == 'd') {
-                        mData.add(Double.parseDouble(builder.toString()));
+    /** @ignore */
+    private static int sPoolSize = 0;
 
-                    } else if (c == 'b') {
-                        mData.add((byte) (Integer.valueOf(builder.toString()) & 0xFF));
+    /** @ignore */
+    private static final int FEED_NONE = 0;
 
-                    } else if (c == 'c') {
-                        mData.add((char) (Integer.valueOf(builder.toString()) & 0xFFFF));
+    /** @ignore */
+    private static final int FEED_HEADER = 1;
 
-                    } else if (c == ':') {
-                        // Marshalled version, not important at the moment
+    /** @ignore */
+    private static final int FEED_DATA = 2;
 
-                    } else {
-                        builder.append(c); continue;
-                    }
+    /** @ignore */
+    private int mPointer = 0;
 
-                    builder.setLength(0);
-                }
-            }
+    /** @ignore */
+    private int mLength = 0;
 
-        } catch (Exception e) {}
-    }
+    /** @ignore */
+    private ByteBuffer mBuffer = null;
 
-    /**
-     *
-     */
-    public String toString() {
-        StringBuilder builder = new StringBuilder();
-        int size = mData.size();
+    /** @ignore */
+    private OutputStream mOutputStream = null;
 
-        builder.append(SCHEMA_VERSION);
-        builder.append(':');
+    /** @ignore */
+    private WritableByteChannel mOutputChannel = null;
 
-        for (int i=0; i < size; i++) {
-            Object value = mData.get(i);
+    /** @ignore */
+    private int mBlockSize = 0;
 
-            if (value instanceof Byte) {
-                builder.append(String.valueOf( (int) ((Byte) value) & 0xFF ));
-                builder.append('b');
+    /** @ignore */
+    private boolean mHeaderWritten = false;
 
-            } else if (value instanceof Character) {
-                builder.append(String.valueOf( (int) ((Character) value) & 0xFFFF ));
-                builder.append('c');
+    /** @ignore */
+    private int mFeedState = FEED_NONE;
 
-            } else if (value instanceof Float) {
-                builder.append(String.format("%.3E", (Float) value));
-                builder.append('f');
+    /** @ignore */
+    private Map<String, Integer> mDictionary = null;
 
-            } else if (value instanceof Double) {
-                builder.append(String.format("%.9E", (Double) value));
-                builder.append('d');
+    /** @ignore */
+    private int[] mDefinitions = null;
 
-            } else {
-                builder.append(String.valueOf(value));
+    /** @ignore */
+    private String[] mDefinitionValues = null;
 
-                if (value instanceof Integer) {
-                    builder.append('i');
+    /** @ignore */
+    private int mDefinitionCount = 0;
 
-                } else if (value instanceof Long) {
-                    builder.append('l');
-                }
-            }
-        }
+    /** @ignore */
+    private int mDefinitionScan = 0;
 
-        return builder.toString();
-    }
+    /** @ignore */
+    private MarshalExternalizer mExternalizer = null;
 
-    /**
-     *
-     */
-    public void toStream(Writer output) {
-        int size = mData.size();
+    /** @ignore */
+    private BlobStream mBlobStream = null;
 
-        try {
-            output.write(String.valueOf(SCHEMA_VERSION));
-            output.write(':');
+    /** @ignore */
+    private boolean mTracking = false;
+
+    /** @ignore */
+    private IdentityHashMap<Object, Integer> mWritten = null;
+
+    /** @ignore */
+    private Map<Integer, Object> mRead = null;
+
+    /** @ignore */
+    private int mTrackPosition = -1;
 
-            for (int i = 0; i < size; i++) {
-                Object value = mData.get(i);
+    /** @ignore */
+    private int mFlushed = 0;
 
-                if (value instanceof Byte) {
-                    output.write(String.valueOf((int) ((Byte) value) & 0xFF));
-                    output.write('b');
+    /** @ignore */
+    private MarshalCompressor mCompressor = null;
 
-                } else if (value instanceof Character) {
-                    output.write(String.valueOf((int) ((Character) value) & 0xFFFF));
-                    output.write('c');
+    /** @ignore */
+    private int[] mRecords = null;
 
-                } else if (value instanceof Float) {
-                    output.write(String.format("%.3E", (Float) value));
-                    output.write('f');
+    /** @ignore */
+    private int mRecordCount = 0;
 
-                } else if (value instanceof Double) {
-                    output.write(String.format("%.9E", (Double) value));
-                    output.write('d');
+    /** @ignore */
+    private boolean mIndexed = false;
 
-                } else {
-                    output.write(String.valueOf(value));
+    /** @ignore */
+    private byte[] mFeedBlock = null;
 
-                    if (value instanceof Integer) {
-                        output.write('i');
+    /** @ignore */
+    private int mFeedBlockLength = 0;
 
-                    } else if (value instanceof Long) {
-                        output.write('l');
-                    }
-                }
-            }
+    /** @ignore */
+    private boolean mFeedIndexed = false;
 
-        } catch (Exception e) {}
-    }
+    /** @ignore */
+    private int mFeedScan = 0;
+
+    /** @ignore */
+    private BlobStream mFeedIndex = null;
+
+    /** @ignore */
+    private boolean mPooled = false;
+
+    /** @ignore */
+    private boolean mSpanned = false;
+
+    /** @ignore */
+    private boolean mShared = false;
+
+    /** @ignore */
+    private ExecutorService mExecutor = null;
+
+    /** @ignore */
+    private boolean mDeferred = false;
+
+    /** @ignore */
+    private int[] mMarks = null;
+
+    /** @ignore */
+    private String[] mMarkedStrings = null;
+
+    /** @ignore */
+    private int mMarkCount = 0;
 
     /**
      *
      */
-    public void clear() {
-        mPointer = 0;
-        mData.clear();
-    }
+    public Marshal() {}
 
     /**
-     *
+     * @see #Marshal(OutputStream, int)
      */
-    public void rewind() {
-        mPointer = 0;
+    public Marshal(OutputStream output) {
+        this(output, BINARY_BUFFER_SIZE);
     }
 
     /**
-     *
+     * Create a streaming marshal. Values are encoded into a buffer of {@code blockSize} bytes,
+     * which is written to {@code output} in the binary format each time it fills up.
+     * Call {@link #flush()} once all values have been written.
      */
-    public int getOffset() {
-        return mPointer;
+    public Marshal(OutputStream output, int blockSize) {
+        mOutputStream = output;
+        mBlockSize = Math.max(blockSize, INITIAL_CAPACITY);
     }
 
     /**
-     *
+     * @see #Marshal(WritableByteChannel, int)
      */
-    public void setOffset(int offset) {
-        mPointer = offset < 0 ? mData.size() + offset : offset;
-
-        if (mPointer >= mData.size() && offset != 0 && offset != -1) {
-            throw new RuntimeException("Offset '" + offset + " is out of parcel range'");
-        }
+    public Marshal(WritableByteChannel output) {
+        this(output, BINARY_BUFFER_SIZE);
+    }
 
-        mPointer = offset;
+    /**
+     * @see #Marshal(OutputStream, int)
+     */
+    public Marshal(WritableByteChannel output, int blockSize) {
+        mOutputChannel = output;
+        mBlockSize = Math.max(blockSize, INITIAL_CAPACITY);
     }
 
     /**
-     *
+     * @param input
+     * 		A parcel generated string
      */
-    public Object readOffset() {
-        return readRaw();
+    public Marshal(String input) {
+        if (input != null && input.length() > 0) {
+            TextDecoder decoder = new TextDecoder();
+            char[] buffer = new char[Math.min(input.length(), BINARY_BUFFER_SIZE)];
+
+            for (int i=0, length=input.length(), count; i < length; i += count) {
+                count = Math.min(buffer.length, length - i);
+
+                input.getChars(i, i + count, buffer, 0);
+                decoder.decode(buffer, 0, count);
+            }
+
+            decoder.finish();
+        }
     }
 
     /**
      *
      */
-    public int getLength() {
-        return mData.size();
+    public Marshal(Reader input) {
+        decodeText(input);
     }
 
     /**
-     *
+     * @param input
+     *      A stream containing either the binary output from {@link #toStream(OutputStream)}
+     *      or the textual output from {@link #toStream(Writer)}
      */
-    public void appendFrom(Marshal src, int length) {
-        if (length < 0) {
-            length = ((src.getLength() - src.getOffset()) + length) + 1;
-        }
+    public Marshal(InputStream input) {
+        try {
+            decodeStream(input);
 
-        while (length-- > 0) {
-            writeRaw( src.readOffset() );
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
         }
     }
 
-
-    /* =============================================================
-     * -------------------------------------------------------------
-     * RAW
-     */
-
     /**
-     * @ignore
+     * Read everything that remains in a channel written by {@link #toStream(WritableByteChannel)} or {@link #toStream(Writer)}.
+     * Data from a {@link FileChannel} is memory mapped like the data of {@link #Marshal(File)},
+     * starting at the channel's position, which is moved to the end of the file.
+     * This is not a constructor, as channels that can be both read and written would match {@link #Marshal(WritableByteChannel)} as well.
      */
-    private void writeRaw(Object data) {
-        if (mPointer == mData.size()) {
-            mData.add(data);
+    public static Marshal readFrom(ReadableByteChannel input) {
+        Marshal marshal = new Marshal();
 
-        } else {
-            mData.set(mPointer, data);
+        try {
+            if (input instanceof FileChannel) {
+                marshal.decodeFile((FileChannel) input);
+
+            } else {
+                marshal.decodeStream(Channels.newInputStream(input));
+            }
+
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
         }
 
-        mPointer++;
+        return marshal;
     }
 
     /**
-     * @ignore
+     * Read the remaining data of a buffer written by {@link #toStream(ByteBuffer)}, moving its position to its limit.
+     * Binary data that is not compressed is read in place without being copied, which also applies to direct buffers.
+     * The data must not be changed while the marshal is used, the first write will copy it onto the heap.
      */
-    private Object readRaw() {
-        return mData.get(mPointer++);
-    }
+    public Marshal(ByteBuffer input) {
+        try {
+            decodeBuffer(input);
 
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
 
-    /* =============================================================
-     * -------------------------------------------------------------
-     * SERIALIZABLE
-     */
+        input.position(input.limit());
+    }
 
     /**
-     *
+     * Open a file written by {@link #toStream(OutputStream)} or {@link #toStream(Writer)}.
+     * Binary files are memory mapped and values are only decoded as they are read.
+     * The mapping is read-only, the first write will copy the data onto the heap.
      */
-    public <T extends Serializable> void writeSerializable(T data) {
-        if (data != null) {
+    public Marshal(File input) {
+        try {
+            RandomAccessFile file = new RandomAccessFile(input, "r");
+
             try {
-                ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-                ObjectOutputStream objectStream = new ObjectOutputStream(byteStream);
+                decodeFile(file.getChannel());
 
-                objectStream.writeObject(data);
-                writeByteArray(byteStream.toByteArray());
+            } finally {
+                file.close();
+            }
 
-                objectStream.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
 
-            } catch (Throwable e) {
-                throw new RuntimeException(e.getMessage(), e);
-            }
+    /**
+     * @ignore
+     */
+    private void decodeStream(InputStream input) throws IOException {
+        PushbackInputStream stream = new PushbackInputStream(input, 1);
+        int magic = stream.read();
 
-        } else {
-            writeByteArray(null);
+        if (magic == BINARY_MAGIC) {
+            decodeBinary(stream);
+
+        } else if (magic >= 0) {
+            stream.unread(magic);
+            decodeText(new InputStreamReader(stream, "UTF-8"));
         }
     }
 
     /**
+     * Map the rest of a file from the channel's current position
      *
+     * @ignore
      */
-    public <T extends Serializable> void writeSerializableArray(T[] data) {
-        if (data != null) {
-            writeInt(data.length);
+    private void decodeFile(FileChannel channel) throws IOException {
+        long position = channel.position();
+        long size = channel.size() - position;
 
-            for (int i=0; i < data.length; i++) {
-                writeSerializable(data[i]);
-            }
+        if (size > Integer.MAX_VALUE) {
+            throw new RuntimeException("The file is too large to be mapped, it has " + size + " bytes left");
 
-        } else {
-            writeInt(-1);
+        } else if (size > 0) {
+            decodeBuffer(channel.map(FileChannel.MapMode.READ_ONLY, position, size));
+            channel.position(position + size);
         }
     }
 
     /**
+     * Use the remaining data of a buffer, without copying it unless it is compressed or textual.
+     * The buffer is only read through a read-only view, so writes never reach it.
      *
+     * @ignore
      */
-    @SuppressWarnings("unchecked")
-    public <T extends Serializable> T readSerializable() {
-        try {
-            byte[] data = readByteArray();
+    private void decodeBuffer(ByteBuffer input) throws IOException {
+        ByteBuffer buffer = input.slice();
 
-            if (data != null) {
-                ByteArrayInputStream byteStream = new ByteArrayInputStream(data);
-                ObjectInputStream objectStream = new ObjectInputStream(byteStream);
+        if (buffer.hasRemaining() && (buffer.get(0) & 0xFF) == BINARY_MAGIC) {
+            buffer.position(1);
 
-                T object = (T) objectStream.readObject();
+            int flags = decodeHeader(buffer);
 
-                objectStream.close();
+            if ((flags & FLAG_COMPRESSED) == 0) {
+                mBuffer = buffer.slice().asReadOnlyBuffer();
+                mLength = mBuffer.capacity();
 
-                return object;
+            } else {
+                /*
+                 * Compressed data has to be restored onto the heap
+                 */
+                decodeBlocks(new BufferStream(buffer));
             }
 
-        } catch (Throwable e) {
-            throw new RuntimeException(e.getMessage(), e);
-        }
+            if ((flags & FLAG_INDEXED) != 0) {
+                decodeIndex();
+            }
 
-        return null;
+        } else if (buffer.hasRemaining()) {
+            decodeText(new InputStreamReader(new BufferStream(buffer), "UTF-8"));
+        }
     }
 
     /**
-     *
+     * @ignore
      */
-    public Serializable[] readSerializableArray() {
-        int N = readInt();
-
-        if (N >= 0) {
-            Serializable[] array = new Serializable[N];
+    private void decodeText(Reader input) {
+        TextDecoder decoder = new TextDecoder();
+        char[] buffer = new char[BINARY_BUFFER_SIZE];
+        int length;
 
-            for (int i = 0; i < N; i++) {
-                array[i] = readSerializable();
+        try {
+            while ((length = input.read(buffer)) >= 0) {
+                decoder.decode(buffer, 0, length);
             }
 
-            return array;
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
         }
 
-        return null;
+        decoder.finish();
     }
 
     /**
-     *
+     * @ignore
      */
-    @SuppressWarnings("unchecked")
-    public <T extends Serializable> T[] readSerializableArray(Class<T> clazz) {
-        int N = readInt();
+    private void decodeBinary(InputStream input) throws IOException {
+        int version = readVarInt(input);
+        int flags = 0;
 
-        if (N >= 0) {
-            T[] array = (T[]) Array.newInstance(clazz, N);
+        checkVersion(version);
 
-            for (int i = 0; i < N; i++) {
-                array[i] = readSerializable();
-            }
+        mSpanned = true;
+        mShared = true;
 
-            return array;
+        if (version >= HEADER_FLAGS_VERSION && ((flags = readVarInt(input)) & FLAG_COMPRESSED) != 0) {
+            mCompressor = findCompressor(readVarInt(input));
         }
 
-        return null;
-    }
+        if (mCompressor != null) {
+            decodeBlocks(input);
 
+        } else {
+            ensureCapacity(BINARY_BUFFER_SIZE);
 
-    /* =============================================================
-     * -------------------------------------------------------------
-     * MARSHALABLE
-     */
+            int length;
+
+            while ((length = input.read(mBuffer.array(), mLength, mBuffer.capacity() - mLength)) >= 0) {
+                mLength += length;
+
+                if (mLength == mBuffer.capacity()) {
+                    ensureCapacity(mLength + BINARY_BUFFER_SIZE);
+                }
+            }
+        }
+
+        if ((flags & FLAG_INDEXED) != 0) {
+            decodeIndex();
+        }
+    }
 
     /**
+     * Read compressed blocks until the end of the stream
      *
+     * @ignore
      */
-    public <T extends Marshalable> void writeMarshalable(T data) {
-        if (data != null) {
-            String signature = data.getMarshalSignature();
+    private void decodeBlocks(InputStream input) throws IOException {
+        byte[] block = new byte[BINARY_BUFFER_SIZE];
+        int b;
 
-            if (signature != null) {
-                try {
-                    Class.forName(signature);
+        while ((b = input.read()) >= 0) {
+            int length = b & 0x7F;
 
-                } catch (Throwable e) {
-                    signature = null;
-                }
+            if ((b & 0x80) != 0) {
+                length |= readVarInt(input) << 7;
             }
 
-            if (signature == null) {
-                signature = data.getClass().getName();
+            int size = readVarInt(input);
+
+            if (size > block.length) {
+                block = new byte[size];
             }
 
-            writeString(signature);
-            data.writeToMarshal(this);
+            for (int pos=0, count; pos < size; pos += count) {
+                if ((count = input.read(block, pos, size - pos)) < 0) {
+                    throw new RuntimeException("The given stream is not a valid marshalled stream, it ends in the middle of a block");
+                }
+            }
 
-        } else {
-            writeString(null);
+            ensureCapacity(mLength + length);
+            mCompressor.decompress(block, 0, size, mBuffer.array(), mLength, length);
+            mLength += length;
         }
     }
 
     /**
-     *
+     * @ignore
      */
-    public <T extends Marshalable> void writeMarshalableArray(T[] data) {
-        if (data != null) {
-            writeInt(data.length);
+    private static int readVarInt(InputStream input) throws IOException {
+        int value = 0;
 
-            for (int i=0; i < data.length; i++) {
-                writeMarshalable(data[i]);
+        for (int shift=0, b=0x80; (b & 0x80) != 0; shift += 7) {
+            if ((b = input.read()) < 0) {
+                throw new RuntimeException("The given stream is not a valid marshalled stream, missing header");
             }
 
-        } else {
-            writeInt(-1);
+            value |= (b & 0x7F) << shift;
         }
+
+        return value;
     }
 
     /**
+     * Read the header that follows the magic byte and set up the compressor if needed
+     *
+     * @return
+     *      The header flags
      *
+     * @ignore
      */
-    @SuppressWarnings("unchecked")
-    public <T extends Marshalable> T readMarshalable() {
-        String className = readString();
+    private int decodeHeader(ByteBuffer input) {
+        int version = decodeVarInt(input);
+        int flags = 0;
 
-        if (className != null) {
-            try {
-                return (T) Class.forName(className).getConstructor(Marshal.class).newInstance(this);
+        checkVersion(version);
 
-            } catch (Throwable e) {
-                throw new RuntimeException(e.getMessage(), e);
-            }
+        mSpanned = true;
+        mShared = true;
+
+        if (version >= HEADER_FLAGS_VERSION && ((flags = decodeVarInt(input)) & FLAG_COMPRESSED) != 0) {
+            mCompressor = findCompressor(decodeVarInt(input));
         }
 
-        return null;
+        return flags;
     }
 
     /**
+     * Load the record index that ends the data, and hide it from the rest of the marshal.
+     * The last 4 bytes of the index hold its total size, so it can be found from the end.
      *
+     * @ignore
      */
-    public Marshalable[] readMarshalableArray() {
-        int N = readInt();
+    private void decodeIndex() {
+        int pos = mLength - 4 >= 0 ? mLength - mBuffer.getInt(mLength - 4) : -1;
 
-        if (N >= 0) {
-            Marshalable[] array = new Marshalable[N];
+        if (pos < 0 || pos >= mLength || mBuffer.get(pos) != WIRE_INDEX) {
+            throw new RuntimeException("The marshalled data is malformed, the record index is missing");
+        }
 
-            for (int i = 0; i < N; i++) {
-                array[i] = readMarshalable();
-            }
+        int count = getVarInt(pos = pos + 1 + sizeOfVarInt(getVarInt(pos + 1)));
 
-            return array;
-        }
+        mLength -= mBuffer.getInt(mLength - 4);
+        mRecords = new int[Math.max(count, 1)];
+        mRecordCount = count;
+        mIndexed = true;
 
-        return null;
+        for (int i=0, offset=pos + sizeOfVarInt(count); i < count; i++, offset += 4) {
+            mRecords[i] = mBuffer.getInt(offset);
+        }
     }
 
     /**
-     *
+     * @ignore
      */
-    @SuppressWarnings("unchecked")
-    public <T extends Marshalable> T[] readMarshalableArray(Class<T> clazz) {
-        int N = readInt();
-
-        if (N >= 0) {
-            T[] array = (T[]) Array.newInstance(clazz, N);
+    private static int decodeVarInt(ByteBuffer input) {
+        int value = 0;
 
-            for (int i = 0; i < N; i++) {
-                array[i] = readMarshalable();
+        for (int shift=0, b=0x80; (b & 0x80) != 0; shift += 7) {
+            if (!input.hasRemaining()) {
+                throw new Underflow();
             }
 
-            return array;
+            b = input.get() & 0xFF;
+            value |= (b & 0x7F) << shift;
         }
 
-        return null;
+        return value;
     }
 
-
-    /* =============================================================
-     * -------------------------------------------------------------
-     * STRING
-     */
-
     /**
-     *
+     * @ignore
      */
-    public void writeString(String data) {
-        char[] chars = null;
-
-        if (data != null) {
-            chars = data.toCharArray();
+    private static void checkVersion(int version) {
+        if (version > SCHEMA_VERSION) {
+            throw new RuntimeException("Unsupported marshal version '" + version + "'");
         }
-
-        writeCharArray(chars);
     }
 
     /**
      *
      */
-    public void writeStringArray(String[] data) {
-        if (data != null) {
-            writeInt(data.length);
+    public String toString() {
+        checkBuffered();
 
-            for (String str : data) {
-                writeString(str);
-            }
+        StringBuilder builder = new StringBuilder();
 
-        } else {
-            writeInt(-1);
-        }
+        try {
+            encodeText(builder);
+
+        } catch (IOException e) {}
+
+        return builder.toString();
     }
 
     /**
      *
      */
-    public String readString() {
-        char[] chars = readCharArray();
+    public void toStream(Writer output) {
+        checkBuffered();
 
-        if (chars != null) {
-            return new String(chars);
-        }
+        try {
+            encodeText(output);
 
-        return null;
+        } catch (Exception e) {}
     }
 
     /**
-     *
+     * Write this marshal in the compact binary format.
+     * The output can be read back using {@link #Marshal(InputStream)}
      */
-    public String[] readStringArray() {
-        int N = readInt();
+    public void toStream(OutputStream output) {
+        checkBuffered();
 
-        if (N >= 0) {
-            String[] out = new String[N];
+        try {
+            output.write(encodeHeader());
 
-            for (int i=0; i < N; i++) {
-                out[i] = readString();
-            }
+            if (mLength > 0) {
+                if (mBuffer.hasArray() && mCompressor == null) {
+                    output.write(mBuffer.array(), mBuffer.arrayOffset(), mLength);
 
-            return out;
-        }
+                } else if (mBuffer.hasArray()) {
+                    for (int pos=0, length; pos < mLength; pos += length) {
+                        length = Math.min(COMPRESSION_BLOCK_SIZE, mLength - pos);
+                        encodeBlock(mBuffer.array(), mBuffer.arrayOffset() + pos, length, output);
+                    }
 
-        return null;
-    }
+                } else {
+                    byte[] buffer = new byte[mCompressor != null ? COMPRESSION_BLOCK_SIZE : BINARY_BUFFER_SIZE];
+                    ByteBuffer src = mBuffer.duplicate();
+                    src.position(0).limit(mLength);
 
+                    while (src.hasRemaining()) {
+                        int length = Math.min(buffer.length, src.remaining());
 
-    /* =============================================================
-     * -------------------------------------------------------------
-     * INTEGER
-     */
+                        src.get(buffer, 0, length);
 
-    /**
-     *
-     */
-    public void writeInt(int data) {
-        writeRaw(data);
-    }
+                        if (mCompressor != null) {
+                            encodeBlock(buffer, 0, length, output);
 
-    /**
-     *
-     */
-    public void writeIntArray(int[] data) {
-        if (data != null) {
-            writeInt(data.length);
+                        } else {
+                            output.write(buffer, 0, length);
+                        }
+                    }
+                }
+            }
+
+            if (mIndexed) {
+                byte[] index = encodeIndex();
+
+                if (mCompressor != null) {
+                    encodeBlock(index, 0, index.length, output);
 
-            for (int in : data) {
-                writeInt(in);
+                } else {
+                    output.write(index);
+                }
             }
 
-        } else {
-            writeInt(-1);
+            output.flush();
+
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
         }
     }
 
     /**
-     *
+     * Same as {@link #toStream(OutputStream)}, but writes directly to a channel.
+     * The header, the data and any record index are passed to a {@link GatheringByteChannel} in a single write,
+     * and the data is written from where it is stored, like the mapping of {@link #Marshal(File)}, without being copied.
      */
-    public int readInt() {
-        return (Integer) readRaw();
+    public void toStream(WritableByteChannel output) {
+        checkBuffered();
+
+        if (mCompressor != null) {
+            toStream(Channels.newOutputStream(output)); return;
+        }
+
+        ByteBuffer data = view(0);
+        data.limit(mLength);
+
+        try {
+            writeFully(output, ByteBuffer.wrap(encodeHeader()), data, ByteBuffer.wrap(mIndexed ? encodeIndex() : new byte[0]));
+
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
     }
 
     /**
-     *
+     * Same as {@link #toStream(OutputStream)}, but puts the output into a buffer, which may be direct, and moves its position past it.
+     * A {@link BufferOverflowException} is thrown without writing anything if the output does not fit
+     * within the remaining space. It takes up the size of {@link #getLength()}, a header of a few bytes
+     * and the record index of an indexed marshal, unless it is compressed.
      */
-    public int[] readIntArray() {
-        int N = readInt();
+    public void toStream(ByteBuffer output) {
+        checkBuffered();
 
-        if (N >= 0) {
-            int[] out = new int[N];
+        if (mCompressor != null) {
+            BlobStream stream = new BlobStream();
 
-            for (int i=0; i < N; i++) {
-                out[i] = readInt();
+            toStream(stream);
+
+            if (stream.size() > output.remaining()) {
+                throw new BufferOverflowException();
             }
 
-            return out;
-        }
+            output.put(stream.getBuffer(), 0, stream.size());
 
-        return null;
-    }
+        } else {
+            byte[] header = encodeHeader();
+            byte[] index = mIndexed ? encodeIndex() : new byte[0];
+            ByteBuffer data = view(0);
 
+            if (header.length + mLength + index.length > output.remaining()) {
+                throw new BufferOverflowException();
+            }
 
-    /* =============================================================
-     * -------------------------------------------------------------
-     * LONG
-     */
+            data.limit(mLength);
 
-    /**
-     *
-     */
-    public void writeLong(long data) {
-        writeRaw(data);
+            output.put(header);
+            output.put(data);
+            output.put(index);
+        }
     }
 
     /**
-     *
+     * Write everything that is currently buffered by a streaming marshal
      */
-    public void writeLongArray(long[] data) {
-        if (data != null) {
-            writeInt(data.length);
+    public void flush() {
+        if (mOutputStream != null || mOutputChannel != null) {
+            flushBuffer();
 
-            for (long in : data) {
-                writeLong(in);
-            }
+            if (mOutputStream != null) {
+                try {
+                    mOutputStream.flush();
 
-        } else {
-            writeInt(-1);
+                } catch (IOException e) {
+                    throw new RuntimeException(e.getMessage(), e);
+                }
+            }
         }
     }
 
     /**
+     * Write the record index and everything that is still buffered by a streaming marshal.
+     * An indexed streaming marshal must be ended this way, nothing can be written afterwards.
+     * On other marshals this is the same as {@link #flush()}.
      *
+     * @see #markRecord()
      */
-    public long readLong() {
-        return (Long) readRaw();
+    public void finish() {
+        if (mIndexed && (mOutputStream != null || mOutputChannel != null)) {
+            byte[] index = encodeIndex();
+
+            mPointer = mLength;
+
+            int pos = reserve(index.length);
+
+            view(pos).put(index);
+            flush();
+
+            mIndexed = false;
+
+        } else {
+            flush();
+        }
     }
 
     /**
-     *
+     * @ignore
      */
-    public long[] readLongArray() {
-        int N = readInt();
+    private void flushBuffer() {
+        try {
+            if (!mHeaderWritten) {
+                byte[] header = encodeHeader();
 
-        if (N >= 0) {
-            long[] out = new long[N];
+                if (mOutputStream != null) {
+                    mOutputStream.write(header);
 
-            for (int i=0; i < N; i++) {
-                out[i] = readLong();
+                } else {
+                    writeFully(mOutputChannel, ByteBuffer.wrap(header));
+                }
+
+                mHeaderWritten = true;
             }
 
-            return out;
-        }
+            if (mLength > 0) {
+                if (mCompressor != null) {
+                    encodeBlock(mBuffer.array(), 0, mLength, mOutputStream != null ? mOutputStream : Channels.newOutputStream(mOutputChannel));
 
-        return null;
-    }
+                } else if (mOutputStream != null) {
+                    mOutputStream.write(mBuffer.array(), 0, mLength);
 
+                } else {
+                    ByteBuffer buffer = view(0);
+                    buffer.limit(mLength);
 
-    /* =============================================================
-     * -------------------------------------------------------------
-     * FLOAT
-     */
+                    writeFully(mOutputChannel, buffer);
+                }
+            }
 
-    /**
-     *
-     */
-    public void writeFloat(float data) {
-        writeRaw(data);
+            mFlushed += mLength;
+            mLength = 0;
+            mPointer = 0;
+
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
     }
 
     /**
+     * Write all remaining data of the buffers, using a single gathering write where the channel supports it
      *
+     * @ignore
      */
-    public void writeFloatArray(float[] data) {
-        if (data != null) {
-            writeInt(data.length);
+    private static void writeFully(WritableByteChannel output, ByteBuffer... buffers) throws IOException {
+        for (int i=0; i < buffers.length; ) {
+            if (!buffers[i].hasRemaining()) {
+                i++;
 
-            for (float fl : data) {
-                writeFloat(fl);
-            }
+            } else if (output instanceof GatheringByteChannel) {
+                ((GatheringByteChannel) output).write(buffers, i, buffers.length - i);
 
-        } else {
-            writeInt(-1);
+            } else {
+                output.write(buffers[i]);
+            }
         }
     }
 
     /**
+     * Build the record index element, which is written after all other data.
+     * It ends with its own total size, so that readers can find it from the end of the data.
      *
+     * @ignore
      */
-    public float readFloat() {
-        return (Float) readRaw();
+    private byte[] encodeIndex() {
+        int length = sizeOfVarInt(mRecordCount) + (mRecordCount * 4) + 4;
+        int size = 1 + sizeOfVarInt(length) + length;
+        BlobStream index = new BlobStream();
+
+        index.write(WIRE_INDEX);
+        writeVarInt(index, length);
+        writeVarInt(index, mRecordCount);
+
+        ByteBuffer records = ByteBuffer.allocate((mRecordCount * 4) + 4);
+
+        for (int i=0; i < mRecordCount; i++) {
+            records.putInt(mRecords[i]);
+        }
+
+        records.putInt(size);
+        index.write(records.array(), 0, records.capacity());
+
+        return index.toByteArray();
     }
 
     /**
-     *
+     * @ignore
      */
-    public float[] readFloatArray() {
-        int N = readInt();
+    private byte[] encodeHeader() {
+        BlobStream header = new BlobStream();
 
-        if (N >= 0) {
-            float[] out = new float[N];
+        header.write(BINARY_MAGIC);
+        writeVarInt(header, SCHEMA_VERSION);
 
-            for (int i=0; i < N; i++) {
-                out[i] = readFloat();
-            }
+        writeVarInt(header, (mCompressor != null ? FLAG_COMPRESSED : 0) | (mIndexed ? FLAG_INDEXED : 0));
 
-            return out;
+        if (mCompressor != null) {
+            writeVarInt(header, mCompressor.getId());
         }
 
-        return null;
+        return header.toByteArray();
     }
 
-
-    /* =============================================================
-     * -------------------------------------------------------------
-     * DOUBLE
-     */
-
     /**
-     *
+     * @ignore
      */
-    public void writeDouble(double data) {
-        writeRaw(data);
+    private static void writeVarInt(OutputStream output, int value) {
+        try {
+            for (; (value & ~0x7F) != 0; value >>>= 7) {
+                output.write((value & 0x7F) | 0x80);
+            }
+
+            output.write(value);
+
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
     }
 
     /**
+     * Compress a block of data and write it together with its original and compressed size
      *
+     * @ignore
      */
-    public void writeDoubleArray(double[] data) {
-        if (data != null) {
-            writeInt(data.length);
+    private void encodeBlock(byte[] data, int offset, int length, OutputStream output) throws IOException {
+        if (mBlobStream == null) {
+            mBlobStream = new BlobStream();
+        }
 
-            for (double fl : data) {
-                writeDouble(fl);
-            }
+        BlobStream stream = mBlobStream;
 
-        } else {
-            writeInt(-1);
-        }
+        stream.reset();
+        mCompressor.compress(data, offset, length, stream);
+
+        writeVarInt(output, length);
+        writeVarInt(output, stream.size());
+
+        output.write(stream.getBuffer(), 0, stream.size());
     }
 
     /**
-     *
+     * @ignore
      */
-    public double readDouble() {
-        return (Double) readRaw();
+    private void checkBuffered() {
+        if (mOutputStream != null || mOutputChannel != null) {
+            throw new RuntimeException("This operation is not supported by a streaming marshal");
+        }
     }
 
     /**
+     * Floats and doubles are written as their raw IEEE 754 bits in hex, which is
+     * locale independent and reads back bit-exact.
      *
+     * @ignore
      */
-    public double[] readDoubleArray() {
-        int N = readInt();
+    private void encodeText(Appendable output) throws IOException {
+        char[] chunk = new char[BINARY_BUFFER_SIZE];
+        char[] chars = null;
+        int count = appendDecimal(chunk, 0, SCHEMA_VERSION);
 
-        if (N >= 0) {
-            double[] out = new double[N];
+        chunk[count++] = ':';
 
-            for (int i=0; i < N; i++) {
-                out[i] = readDouble();
+        for (int pos=0; pos < mLength; pos += sizeOfElement(pos)) {
+            byte type = mBuffer.get(pos);
+
+            if (count > chunk.length - TEXT_TOKEN_SIZE) {
+                flushText(output, chunk, count); count = 0;
             }
 
-            return out;
-        }
+            switch (type) {
+                case WIRE_BEGIN:
+                    chunk[count++] = '{'; continue;
 
-        return null;
-    }
+                case WIRE_END:
+                    chunk[count++] = '}'; continue;
 
+                case WIRE_INT:
+                    count = appendDecimal(chunk, count, decodeZigZag(getVarInt(pos + 1))); break;
 
-    /* =============================================================
-     * -------------------------------------------------------------
-     * BYTE
-     */
+                case WIRE_LONG:
+                    count = appendDecimal(chunk, count, decodeZigZag(getVarLong(pos + 1))); break;
 
-    /**
-     *
-     */
-    public void writeByte(byte data) {
-        writeRaw(data);
-    }
+                case WIRE_FLOAT:
+                    count = appendHex(chunk, count, mBuffer.getInt(pos + 1) & 0xFFFFFFFFL, 8); break;
 
-    /**
-     *
-     */
-    public void writeByteArray(byte[] data) {
-        if (data != null) {
-            writeInt(data.length);
+                case WIRE_DOUBLE:
+                    count = appendHex(chunk, count, mBuffer.getLong(pos + 1), 16); break;
+
+                case WIRE_BYTE:
+                    count = appendDecimal(chunk, count, mBuffer.get(pos + 1) & 0xFF); break;
+
+                case WIRE_CHAR:
+                    count = appendDecimal(chunk, count, getVarInt(pos + 1) & 0xFFFF); break;
+
+                case WIRE_REFERENCE:
+                case WIRE_BACKREF:
+                case WIRE_FIELD:
+                    count = appendDecimal(chunk, count, getVarInt(pos + 1)); break;
+
+                case WIRE_SPAN:
+                case WIRE_SEGMENT:
+                    count = appendDecimal(chunk, count, mBuffer.getInt(pos + 1)); break;
+
+                case WIRE_DEFINE:
+                case WIRE_STRING:
+                    if (type == WIRE_DEFINE) {
+                        chunk[count++] = '=';
+                    }
+
+                    int size = getVarInt(pos + 1);
+
+                    if (chars == null || chars.length < size) {
+                        chars = new char[Math.max(size, INITIAL_CAPACITY)];
+                    }
+
+                    int N = decodeUtf8(pos + 1 + sizeOfVarInt(size), size, chars);
+
+                    chunk[count++] = '"';
 
-            for (byte by : data) {
-                writeByte(by);
+                    for (int i=0; i < N; i++) {
+                        if (count > chunk.length - TEXT_TOKEN_SIZE) {
+                            flushText(output, chunk, count); count = 0;
+                        }
+
+                        count = appendEscaped(chunk, count, chars, i, N);
+                    }
+
+                    chunk[count++] = '"'; continue;
+
+                default:
+                    int length = getVarInt(pos + 1);
+                    int width = widthOfArray(type);
+                    int offset = pos + 1 + sizeOfVarInt(length);
+
+                    chunk[count++] = '[';
+
+                    for (int i=0; i < length; i++, offset += width) {
+                        if (count > chunk.length - TEXT_TOKEN_SIZE) {
+                            flushText(output, chunk, count); count = 0;
+                        }
+
+                        if (i > 0) {
+                            chunk[count++] = ',';
+                        }
+
+                        switch (type) {
+                            case WIRE_INTARRAY:
+                                count = appendDecimal(chunk, count, mBuffer.getInt(offset)); break;
+
+                            case WIRE_LONGARRAY:
+                                count = appendDecimal(chunk, count, mBuffer.getLong(offset)); break;
+
+                            case WIRE_FLOATARRAY:
+                                count = appendHex(chunk, count, mBuffer.getInt(offset) & 0xFFFFFFFFL, 8); break;
+
+                            case WIRE_DOUBLEARRAY:
+                                count = appendHex(chunk, count, mBuffer.getLong(offset), 16); break;
+
+                            case WIRE_BYTEARRAY:
+                                count = appendDecimal(chunk, count, mBuffer.get(offset) & 0xFF); break;
+
+                            default:
+                                count = appendDecimal(chunk, count, mBuffer.getChar(offset));
+                        }
+                    }
+
+                    chunk[count++] = ']';
             }
 
-        } else {
-            writeInt(-1);
+            chunk[count++] = suffixOf(type);
         }
+
+        flushText(output, chunk, count);
     }
 
     /**
-     *
+     * @ignore
      */
-    public byte readByte() {
-        return (Byte) readRaw();
+    private static void flushText(Appendable output, char[] chunk, int count) throws IOException {
+        if (output instanceof StringBuilder) {
+            ((StringBuilder) output).append(chunk, 0, count);
+
+        } else if (output instanceof Writer) {
+            ((Writer) output).write(chunk, 0, count);
+
+        } else {
+            output.append(CharBuffer.wrap(chunk, 0, count));
+        }
     }
 
     /**
-     *
+     * @ignore
      */
-    public byte[] readByteArray() {
-        int N = readInt();
-
-        if (N >= 0) {
-            byte[] out = new byte[N];
+    private static int appendDecimal(char[] chunk, int count, long value) {
+        if (value >= 0) {
+            value = -value;
 
-            for (int i=0; i < N; i++) {
-                out[i] = readByte();
-            }
-
-            return out;
+        } else {
+            chunk[count++] = '-';
         }
 
-        return null;
-    }
+        /*
+         * Digits are produced from a negative value so that Long.MIN_VALUE needs no special case
+         */
+        int end = count;
 
+        do {
+            chunk[end++] = (char) ('0' - (value % 10));
+            value /= 10;
 
-    /* =============================================================
-     * -------------------------------------------------------------
-     * BYTE
-     */
+        } while (value != 0);
 
-    /**
-     *
-     */
-    public void writeChar(char data) {
-        writeRaw(data);
+        for (int i=count, j=end-1; i < j; i++, j--) {
+            char c = chunk[i]; chunk[i] = chunk[j]; chunk[j] = c;
+        }
+
+        return end;
     }
 
     /**
+     * Characters that could not survive a text encoding, like control characters and
+     * surrogates that are not part of a pair, are written as unicode escapes.
      *
+     * @ignore
      */
-    public void writeCharArray(char[] data) {
-        if (data != null) {
-            writeInt(data.length);
+    private static int appendEscaped(char[] chunk, int count, char[] chars, int i, int length) {
+        char c = chars[i];
+
+        if (c == '"' || c == '\\') {
+            chunk[count++] = '\\';
+            chunk[count++] = c;
+
+        } else if (c < 0x20 || (Character.isHighSurrogate(c) && (i + 1 == length || !Character.isLowSurrogate(chars[i + 1])))
+                || (Character.isLowSurrogate(c) && (i == 0 || !Character.isHighSurrogate(chars[i - 1])))) {
 
-            for (char by : data) {
-                writeChar(by);
+            chunk[count++] = '\\';
+            chunk[count++] = 'u';
+
+            for (int shift=12; shift >= 0; shift -= 4) {
+                chunk[count++] = HEX_DIGITS[(c >>> shift) & 0xF];
             }
 
         } else {
-            writeInt(-1);
+            chunk[count++] = c;
         }
+
+        return count;
     }
 
     /**
-     *
+     * @ignore
      */
-    public char readChar() {
-        return (Character) readRaw();
+    private static int appendHex(char[] chunk, int count, long bits, int digits) {
+        chunk[count++] = 'x';
+
+        for (int shift=(digits-1)*4; shift >= 0; shift -= 4) {
+            chunk[count++] = HEX_DIGITS[(int) (bits >>> shift) & 0xF];
+        }
+
+        return count;
     }
 
     /**
-     *
+     * @ignore
      */
-    public char[] readCharArray() {
-        int N = readInt();
+    private static char suffixOf(byte type) {
+        switch (type) {
+            case WIRE_INT:
+            case WIRE_INTARRAY:
+                return 'i';
 
-        if (N >= 0) {
-            char[] out = new char[N];
+            case WIRE_LONG:
+            case WIRE_LONGARRAY:
+                return 'l';
 
-            for (int i=0; i < N; i++) {
-                out[i] = readChar();
-            }
+            case WIRE_FLOAT:
+            case WIRE_FLOATARRAY:
+                return 'f';
 
-            return out;
-        }
+            case WIRE_DOUBLE:
+            case WIRE_DOUBLEARRAY:
+                return 'd';
 
-        return null;
-    }
+            case WIRE_REFERENCE:
+                return 'r';
 
+            case WIRE_BACKREF:
+                return 'p';
 
-    /* =============================================================
-     * -------------------------------------------------------------
-     * OBJECT ARRAYS
-     */
+            case WIRE_FIELD:
+                return 't';
 
-    /**
-     *
-     */
-    public void writeArray(Object[] data) {
-        if (data != null) {
-            writeInt(data.length);
+            case WIRE_SPAN:
+                return 's';
 
-            for (int i=0; i < data.length; i++) {
-                writeValue(data[i]);
-            }
+            case WIRE_SEGMENT:
+                return 'g';
 
-        } else {
-            writeInt(-1);
+            case WIRE_BYTE:
+            case WIRE_BYTEARRAY:
+                return 'b';
+
+            default:
+                return 'c';
         }
     }
 
     /**
-     *
+     * Resets the marshal and releases the internal buffer
      */
-    public Object[] readArray() {
-        int N = readInt();
+    public void clear() {
+        mPointer = 0;
+        mLength = 0;
+        mBuffer = null;
+        mDictionary = null;
+        mDefinitions = null;
+        mDefinitionValues = null;
+        mDefinitionCount = 0;
+        mDefinitionScan = 0;
+        mBlobStream = null;
+        mWritten = null;
+        mRead = null;
+        mRecords = null;
+        mRecordCount = 0;
+        mIndexed = false;
+        mFeedIndex = null;
+        mSpanned = false;
+        mShared = false;
+        mMarks = null;
+        mMarkedStrings = null;
+        mMarkCount = 0;
+    }
 
-        if (N >= 0) {
-            Object[] out = new Object[N];
+    /**
+     * Discard all data but keep the buffers that has been allocated, so that the marshal
+     * can be used again without having to grow them once more. Settings like compression
+     * and reference tracking are kept. A streaming marshal will start a new output, including a new header.
+     */
+    public void reset() {
+        if (mBuffer != null && (mBuffer.isReadOnly() || !mBuffer.hasArray())) {
+            /*
+             * Mapped files and wrapped input cannot be written to
+             */
+            mBuffer = null;
+        }
 
-            for (int i=0; i < N; i++) {
-                out[i] = readValue();
-            }
+        if (mDictionary != null) {
+            mDictionary.clear();
+        }
 
-            return out;
+        if (mWritten != null) {
+            mWritten.clear();
         }
 
-        return null;
-    }
+        if (mRead != null) {
+            mRead.clear();
+        }
 
+        if (mDefinitionValues != null) {
+            /*
+             * Decoded strings are cached by dictionary id, which the next data will reuse.
+             * The whole cache is cleared, as definitions dropped by a resize may have left entries past the count.
+             */
+            Arrays.fill(mDefinitionValues, null);
+        }
 
-    /* =============================================================
-     * -------------------------------------------------------------
-     * COLLECTIONS
-     */
+        mPointer = 0;
+        mLength = 0;
+        mDefinitionCount = 0;
+        mDefinitionScan = 0;
+        mTrackPosition = -1;
+        mRecordCount = 0;
+        mIndexed = false;
+        mFlushed = 0;
+        mHeaderWritten = false;
+        mFeedState = FEED_NONE;
+        mFeedBlockLength = 0;
+        mFeedIndexed = false;
+        mFeedScan = 0;
+        mFeedIndex = null;
+        mSpanned = false;
+        mShared = false;
+
+        for (int i=0; i < mMarkCount; i++) {
+            mMarkedStrings[i] = null;
+        }
+
+        mMarkCount = 0;
+    }
 
     /**
-     *
+     * Get a marshal from the shared pool, or a new one if the pool is empty.
+     * Return it using {@link #recycle()} once it is no longer needed.
      */
-    public void writeList(List<?> data) {
-        if (data != null) {
-            int N = data.size();
-            writeInt(N);
+    public static Marshal obtain() {
+        Marshal marshal;
 
-            for (int i=0; i < N; i++) {
-                writeValue(data.get(i));
+        synchronized (POOL) {
+            marshal = sPoolSize > 0 ? POOL.pop() : null;
+
+            if (marshal != null) {
+                sPoolSize--;
             }
+        }
+
+        if (marshal == null) {
+            marshal = new Marshal();
 
         } else {
-            writeInt(-1);
+            marshal.mPooled = false;
         }
+
+        return marshal;
     }
 
     /**
-     *
+     * Reset this marshal and return it to the shared pool used by {@link #obtain()}.
+     * The marshal, and anything that was read directly from it, must not be used afterwards.
      */
-    public List<?> readList() {
-        int N = readInt();
+    public void recycle() {
+        if (mOutputStream != null || mOutputChannel != null) {
+            throw new RuntimeException("A streaming marshal cannot be recycled");
 
-        if (N >= 0) {
-            List<Object> out = new SwiftList<Object>();
+        } else if (mPooled) {
+            throw new RuntimeException("The marshal has already been recycled");
+        }
 
-            for (int i=0; i < N; i++) {
-                out.add(readValue());
-            }
+        reset();
 
-            return out;
+        if (mBuffer != null && mBuffer.capacity() > POOL_MAX_CAPACITY) {
+            mBuffer = null;
         }
 
-        return null;
+        mCompressor = null;
+        mExternalizer = null;
+        mExecutor = null;
+        mTracking = false;
+        mDeferred = false;
+        mPooled = true;
+
+        synchronized (POOL) {
+            if (sPoolSize < POOL_SIZE) {
+                POOL.add(this);
+                sPoolSize++;
+            }
+        }
     }
 
     /**
      *
      */
-    public void writeMap(Map data) {
-        if (data != null) {
-            int N = data.size();
-            writeInt(N);
-
-            for (Map.Entry<Object, Object> entry : ((Map<Object, Object>) data).entrySet()) {
-                writeValue(entry.getKey());
-                writeValue(entry.getValue());
-            }
+    public void rewind() {
+        checkBuffered();
 
-        } else {
-            writeInt(-1);
-        }
+        mPointer = 0;
     }
 
     /**
-     *
+     * Returns the current byte offset within the marshalled data
      */
-    public Map<?, ?> readMap() {
-        int N = readInt();
-
-        if (N >= 0) {
-            Map<Object, Object> out = new SwiftMap<Object, Object>();
-            Object key;
-            Object value;
+    public int getOffset() {
+        return mPointer;
+    }
 
-            for (int i=0; i < N; i++) {
-                key = readValue();
-                value = readValue();
+    /**
+     * Move the pointer to a byte offset previously returned by {@link #getOffset()}.
+     * Negative values are counted from the end, where {@code -1} is the end itself.
+     */
+    public void setOffset(int offset) {
+        checkBuffered();
 
-                out.put(key, value);
-            }
+        int pointer = offset < 0 ? mLength + offset + 1 : offset;
 
-            return out;
+        if (pointer < 0 || pointer > mLength) {
+            throw new RuntimeException("Offset '" + offset + " is out of parcel range'");
         }
 
-        return null;
+        mPointer = pointer;
     }
 
     /**
      *
      */
-    public void writeSet(Set data) {
-        if (data != null) {
+    public Object readOffset() {
+        switch (peekType()) {
+            case WIRE_INT:
+                return readInt();
+
+            case WIRE_LONG:
+                return readLong();
+
+            case WIRE_FLOAT:
+                return readFloat();
+
+            case WIRE_DOUBLE:
+                return readDouble();
+
+            case WIRE_BYTE:
+                return readByte();
+
+            case WIRE_STRING:
+            case WIRE_DEFINE:
+            case WIRE_REFERENCE:
+                return readString();
+
+            default:
+                return readChar();
+        }
+    }
+
+    /**
+     * Returns the length in bytes of the marshalled data
+     */
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     *
+     */
+    public void appendFrom(Marshal src, int length) {
+        if (length < 0) {
+            int remaining = 0;
+
+            for (int pos = src.mPointer; pos < src.mLength; pos += src.sizeOfElement(pos)) {
+                remaining++;
+            }
+
+            length = remaining + length + 1;
+        }
+
+        /*
+         * Strings may change size when copied, so spans are written again and sized once their content has been copied.
+         * Each open span is kept as its position here, followed by the position where its content ends in the source.
+         */
+        int[] spans = null;
+        int spanCount = 0;
+
+        /*
+         * Back references hold the distance to their value, which changes along with the strings in between.
+         * Where the source may have them, the source and new position of each copied element is kept, to find the new distance.
+         */
+        int start = src.mPointer;
+        int origin = mFlushed + mPointer;
+        int[] sources = null;
+        int[] targets = null;
+        int count = 0;
+
+        while (length-- > 0) {
+            byte type = src.mBuffer.get(src.mPointer);
+
+            if (src.mShared) {
+                if (sources == null) {
+                    sources = new int[INITIAL_CAPACITY];
+                    targets = new int[INITIAL_CAPACITY];
+
+                } else if (count == sources.length) {
+                    int[] array = new int[count * 2];
+                    System.arraycopy(sources, 0, array, 0, count);
+                    sources = array;
+
+                    array = new int[count * 2];
+                    System.arraycopy(targets, 0, array, 0, count);
+                    targets = array;
+                }
+
+                sources[count] = src.mPointer;
+                targets[count++] = mFlushed + mPointer;
+            }
+
+            if (type == WIRE_DEFINE || type == WIRE_REFERENCE) {
+                /*
+                 * Dictionary ids are local to each marshal
+                 */
+                writeString(src.readString());
+
+            } else if (type == WIRE_BACKREF) {
+                int target = src.mPointer - src.getVarInt(src.mPointer + 1);
+                int index = target >= start && sources != null ? Arrays.binarySearch(sources, 0, count, target) : -1;
+
+                if (target >= start && index < 0) {
+                    throw new RuntimeException("The marshalled data is malformed, invalid reference at offset " + src.mPointer);
+                }
+
+                /*
+                 * Values in front of the copied data are expected to keep their distance to it
+                 */
+                int distance = mFlushed + mPointer - (index >= 0 ? targets[index] : origin - (start - target));
+                int pos = reserve(1 + sizeOfVarInt(distance));
+
+                mBuffer.put(pos, WIRE_BACKREF);
+                putVarInt(pos + 1, distance);
+
+                src.mPointer += src.sizeOfElement(src.mPointer);
+                mShared = true;
+
+            } else if ((type == WIRE_SPAN || type == WIRE_SEGMENT) && mPointer == mLength) {
+                if (spans == null) {
+                    spans = new int[8];
+
+                } else if (spanCount == spans.length) {
+                    int[] array = new int[spanCount * 2];
+                    System.arraycopy(spans, 0, array, 0, spanCount);
+                    spans = array;
+                }
+
+                spans[spanCount++] = writeSpan(type, 0);
+                spans[spanCount++] = src.mPointer + 5 + src.mBuffer.getInt(src.mPointer + 1);
+                src.mPointer += 5;
+
+            } else {
+                int size = src.sizeOfElement(src.mPointer);
+                int pos = reserve(size);
+
+                for (int i=0; i < size; i++) {
+                    mBuffer.put(pos + i, src.mBuffer.get(src.mPointer + i));
+                }
+
+                src.mPointer += size;
+            }
+
+            while (spanCount > 0 && (spans[spanCount - 1] <= src.mPointer || length == 0)) {
+                endSpan(spans[spanCount - 2]);
+                spanCount -= 2;
+            }
+        }
+    }
+
+
+    /**
+     * Append a chunk of binary marshalled data, as written by {@link #toStream(OutputStream)}
+     * or by a streaming marshal. Values can be read as soon as they have been fed completely,
+     * use {@link #hasValue()} or {@link #hasMarshalable()} to check before reading.
+     * The records of indexed data can be used once the index at the end has been fed.
+     */
+    public void feed(byte[] data, int offset, int length) {
+        checkBuffered();
+        checkBounds(data.length, offset, length);
+
+        if (mFeedState == FEED_NONE) {
+            if (mLength > 0) {
+                throw new RuntimeException("Data can only be fed into an empty marshal");
+            }
+
+            mFeedState = FEED_HEADER;
+        }
+
+        if (mFeedState == FEED_DATA && mCompressor == null) {
+            ensureCapacity(mLength + length);
+            view(mLength).put(data, offset, length);
+            mLength += length;
+
+            if (mFeedIndexed) {
+                scanFeed();
+            }
+
+            return;
+        }
+
+        /*
+         * The header and compressed blocks are collected until they are complete
+         */
+        if (mFeedBlock == null || mFeedBlockLength + length > mFeedBlock.length) {
+            byte[] block = new byte[Math.max(mFeedBlockLength + length, BINARY_BUFFER_SIZE)];
+
+            if (mFeedBlock != null) {
+                System.arraycopy(mFeedBlock, 0, block, 0, mFeedBlockLength);
+            }
+
+            mFeedBlock = block;
+        }
+
+        System.arraycopy(data, offset, mFeedBlock, mFeedBlockLength, length);
+        mFeedBlockLength += length;
+
+        ByteBuffer block = ByteBuffer.wrap(mFeedBlock, 0, mFeedBlockLength);
+        int consumed = 0;
+
+        try {
+            if (mFeedState == FEED_HEADER) {
+                if (block.hasRemaining() && (block.get() & 0xFF) != BINARY_MAGIC) {
+                    throw new RuntimeException("The given data is not a valid marshalled stream");
+                }
+
+                mFeedIndexed = (decodeHeader(block) & FLAG_INDEXED) != 0;
+                mFeedState = FEED_DATA;
+                consumed = block.position();
+
+                if (mCompressor == null) {
+                    ensureCapacity(mFeedBlockLength - consumed);
+                    view(0).put(mFeedBlock, consumed, mFeedBlockLength - consumed);
+
+                    mLength = mFeedBlockLength - consumed;
+                    mFeedBlock = null;
+                    mFeedBlockLength = 0;
+
+                    if (mFeedIndexed) {
+                        scanFeed();
+                    }
+
+                    return;
+                }
+            }
+
+            while (block.hasRemaining()) {
+                int blockLength = decodeVarInt(block);
+                int size = decodeVarInt(block);
+
+                if (block.remaining() < size) {
+                    break;
+                }
+
+                ensureCapacity(mLength + blockLength);
+                mCompressor.decompress(mFeedBlock, block.position(), size, mBuffer.array(), mLength, blockLength);
+
+                mLength += blockLength;
+                block.position(block.position() + size);
+                consumed = block.position();
+            }
+
+        } catch (Underflow e) {
+            // Wait for more data
+
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+
+        System.arraycopy(mFeedBlock, consumed, mFeedBlock, 0, mFeedBlockLength - consumed);
+        mFeedBlockLength -= consumed;
+
+        if (mFeedIndexed) {
+            scanFeed();
+        }
+    }
+
+    /**
+     * Keep the record index at the end of fed data apart from the values. Complete elements are walked
+     * as they arrive, and everything from the index element onwards is collected separately,
+     * until the index is complete and its records can be loaded.
+     *
+     * @ignore
+     */
+    private void scanFeed() {
+        while (mFeedIndex == null && mFeedScan < mLength) {
+            if (mBuffer.get(mFeedScan) == WIRE_INDEX) {
+                mFeedIndex = new BlobStream(); break;
+            }
+
+            int size = sizeOfElement(mFeedScan);
+
+            if (mFeedScan + size > mLength) {
+                return;
+            }
+
+            mFeedScan += size;
+        }
+
+        if (mFeedIndex != null && mLength > mFeedScan) {
+            mFeedIndex.write(mBuffer.array(), mFeedScan, mLength - mFeedScan);
+            mLength = mFeedScan;
+
+            int size;
+
+            try {
+                ByteBuffer index = ByteBuffer.wrap(mFeedIndex.getBuffer(), 1, mFeedIndex.size() - 1);
+
+                size = decodeVarInt(index);
+                size += index.position();
+
+            } catch (Underflow e) {
+                return;
+            }
+
+            if (mFeedIndex.size() > size) {
+                throw new RuntimeException("The marshalled data is malformed, it continues after the record index");
+
+            } else if (mFeedIndex.size() == size) {
+                /*
+                 * The index is loaded like that of complete data, which removes it again
+                 */
+                ensureCapacity(mLength + size);
+                view(mLength).put(mFeedIndex.getBuffer(), 0, size);
+
+                mLength += size;
+                mFeedIndex = null;
+                mFeedIndexed = false;
+
+                decodeIndex();
+            }
+        }
+    }
+
+    /**
+     * Check whether a complete value, as written by {@link #writeValue(Object)}, is available at the current offset
+     */
+    public boolean hasValue() {
+        int pointer = mPointer;
+
+        try {
+            skipValue(); return true;
+
+        } catch (Underflow e) {
+            return false;
+
+        } finally {
+            mPointer = pointer;
+        }
+    }
+
+    /**
+     * Check whether a complete {@link Marshalable}, as written by {@link #writeMarshalable(Marshalable)},
+     * is available at the current offset
+     */
+    public boolean hasMarshalable() {
+        int pointer = mPointer;
+
+        try {
+            skipMarshalable(); return true;
+
+        } catch (Underflow e) {
+            return false;
+
+        } finally {
+            mPointer = pointer;
+        }
+    }
+
+    /**
+     * Returns the number of bytes between the current offset and the end of the data
+     */
+    public int available() {
+        return mLength - mPointer;
+    }
+
+
+    /* =============================================================
+     * -------------------------------------------------------------
+     * RAW
+     */
+
+    /**
+     * @ignore
+     */
+    private void ensureCapacity(int capacity) {
+        if (mBuffer == null) {
+            mBuffer = ByteBuffer.allocate(Math.max(capacity, INITIAL_CAPACITY));
+
+        } else if (capacity > mBuffer.capacity() || mBuffer.isReadOnly() || !mBuffer.hasArray()) {
+            ByteBuffer buffer = ByteBuffer.allocate(Math.max(capacity, ((int) (mBuffer.capacity() * BUFFER_RESIZE)) + 1));
+            ByteBuffer src = mBuffer.duplicate();
+
+            src.position(0).limit(mLength);
+            buffer.put(src);
+
+            mBuffer = buffer;
+        }
+    }
+
+    /**
+     * Reserve room for a new element at the current pointer. If the pointer is not at the end,
+     * the element currently at the pointer is replaced and any following data is moved accordingly.
+     *
+     * @ignore
+     */
+    private int reserve(int size) {
+        int pos = mPointer;
+
+        if (pos == mLength) {
+            if (mBlockSize > 0 && pos > 0 && pos + size > mBlockSize) {
+                flushBuffer(); pos = 0;
+            }
+
+            ensureCapacity(pos + size);
+            mLength = pos + size;
+
+        } else {
+            int oldSize = sizeOfElement(pos);
+            int delta = size - oldSize;
+
+            if (mBuffer.get(pos) == WIRE_DEFINE) {
+                throw new RuntimeException("A dictionary string cannot be replaced, it is referenced by later values, at offset " + pos);
+            }
+
+            if (delta != 0) {
+                shiftReferences(pos, oldSize, delta);
+            }
+
+            ensureCapacity(mLength + (delta > 0 ? delta : 0));
+
+            if (delta != 0) {
+                if (pos < mDefinitionScan) {
+                    /*
+                     * Definitions after this point will move, they will be found again when needed
+                     */
+                    while (mDefinitionCount > 0 && mDefinitions[mDefinitionCount - 1] > pos) {
+                        mDefinitionCount--;
+                    }
+
+                    mDefinitionScan = pos;
+                }
+
+                for (int i=0; i < mRecordCount; i++) {
+                    if (mRecords[i] > pos) {
+                        mRecords[i] += delta;
+                    }
+                }
+
+                if (mSpanned) {
+                    resizeSpans(pos, delta);
+                }
+
+                byte[] array = mBuffer.array();
+
+                System.arraycopy(array, pos + oldSize, array, pos + size, mLength - (pos + oldSize));
+                mLength += delta;
+            }
+        }
+
+        mPointer = pos + size;
+
+        return pos;
+    }
+
+    /**
+     * Update the positions of tracked values following an element that changes size by {@code delta}.
+     * Back references hold the distance to their value, so those reaching across the element
+     * would point to the wrong place once it is resized, which is refused.
+     *
+     * @ignore
+     */
+    private void shiftReferences(int pos, int size, int delta) {
+        if (mShared) {
+            for (int i=pos + size; i < mLength; i += sizeOfElement(i)) {
+                if (mBuffer.get(i) == WIRE_BACKREF && i - getVarInt(i + 1) <= pos) {
+                    throw new RuntimeException("A value cannot be resized, it is shared by a reference at offset " + i + ", at offset " + pos);
+                }
+            }
+        }
+
+        if (mWritten != null) {
+            for (Map.Entry<Object, Integer> entry : mWritten.entrySet()) {
+                int target = entry.getValue();
+                int position = (target < 0 ? ~target : target) - mFlushed;
+
+                if (position > pos) {
+                    entry.setValue(target < 0 ? ~(~target + delta) : target + delta);
+                }
+            }
+        }
+
+        if (mRead != null && !mRead.isEmpty()) {
+            Map<Integer, Object> read = new HashMap<Integer, Object>();
+
+            for (Map.Entry<Integer, Object> entry : mRead.entrySet()) {
+                read.put(entry.getKey() > pos ? entry.getKey() + delta : entry.getKey(), entry.getValue());
+            }
+
+            mRead = read;
+        }
+    }
+
+    /**
+     * Write a frame marker, which has no payload
+     *
+     * @ignore
+     */
+    private void writeMarker(byte type) {
+        int pos = reserve(1);
+        mBuffer.put(pos, type);
+    }
+
+    /**
+     * @ignore
+     */
+    private byte peekType() {
+        if (mPointer >= mLength) {
+            throw new RuntimeException("Offset '" + mPointer + " is out of parcel range'");
+        }
+
+        return mBuffer.get(mPointer);
+    }
+
+    /**
+     * @ignore
+     */
+    private int require(byte type) {
+        byte found = peekType();
+
+        if (found != type) {
+            throw new RuntimeException("Expected marshalled type '" + type + "' but found '" + found + "' at offset " + mPointer);
+        }
+
+        return mPointer++;
+    }
+
+    /**
+     * @ignore
+     */
+    private ByteBuffer view(int pos) {
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(pos);
+
+        return buffer;
+    }
+
+    /**
+     * Reserve a packed array element and return the position of the first value
+     *
+     * @ignore
+     */
+    private int reserveArray(byte type, int length, int width) {
+        int header = 1 + sizeOfVarInt(length);
+        int size = header + (length * width);
+        int pos = reserve(mBlockSize > 0 && size > mBlockSize ? header : size);
+
+        mBuffer.put(pos, type);
+        pos = putVarInt(pos + 1, length);
+
+        return pos == mPointer && length > 0 ? reserveChunk(length, width) : pos;
+    }
+
+    /**
+     * Reserve room for the next part of a packed array on a streaming marshal.
+     * The number of values that fit is given by the new pointer.
+     *
+     * @ignore
+     */
+    private int reserveChunk(int length, int width) {
+        if (mLength + width > mBlockSize) {
+            flushBuffer();
+        }
+
+        ensureCapacity(mBlockSize);
+
+        int pos = mLength;
+
+        mLength = pos + (Math.min(length, (mBuffer.capacity() - pos) / width) * width);
+        mPointer = mLength;
+
+        return pos;
+    }
+
+    /**
+     * Move past a packed array element and return the number of values in it
+     *
+     * @ignore
+     */
+    private int readArrayLength(byte type, int width, int max) {
+        require(type);
+
+        int length = readVarInt();
+
+        if (length > max) {
+            throw new ArrayIndexOutOfBoundsException("length=" + max + "; required: " + length);
+        }
+
+        mPointer += length * width;
+
+        return length;
+    }
+
+    /**
+     * @ignore
+     */
+    private static void checkBounds(int size, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > size) {
+            throw new ArrayIndexOutOfBoundsException("length=" + size + "; offset: " + offset + "; count: " + length);
+        }
+    }
+
+    /**
+     * Move past the next element and return its position
+     *
+     * @ignore
+     */
+    private int skipElement() {
+        int pos = mPointer;
+
+        if (pos >= mLength || pos + sizeOfElement(pos) > mLength) {
+            throw new Underflow();
+        }
+
+        mPointer = pos + sizeOfElement(pos);
+
+        return pos;
+    }
+
+    /**
+     * @ignore
+     */
+    private int skipInt() {
+        int pos = skipElement();
+
+        if (mBuffer.get(pos) != WIRE_INT) {
+            throw new RuntimeException("Expected marshalled type '" + WIRE_INT + "' but found '" + mBuffer.get(pos) + "' at offset " + pos);
+        }
+
+        return decodeZigZag(getVarInt(pos + 1));
+    }
+
+    /**
+     * Move past a packed array, a {@code null} array or an array written as a length followed by its values
+     *
+     * @ignore
+     */
+    private void skipArray() {
+        if (mPointer < mLength && mBuffer.get(mPointer) == WIRE_INT) {
+            for (int i=0, N=skipInt(); i < N; i++) {
+                skipElement();
+            }
+
+        } else {
+            skipElement();
+        }
+    }
+
+    /**
+     * @ignore
+     */
+    private void skipMarshalable() {
+        if (mPointer < mLength && mBuffer.get(mPointer) == WIRE_BACKREF) {
+            skipElement();
+
+        } else if (mPointer < mLength && mBuffer.get(mPointer) == WIRE_BEGIN) {
+            mPointer++;
+            skipFrame();
+
+        } else if (mPointer >= mLength || mBuffer.get(mPointer) != WIRE_INT) {
+            throw new Underflow();
+
+        } else if (skipInt() >= 0) {
+            throw new RuntimeException("Marshalable data without frame markers cannot be skipped");
+        }
+    }
+
+    /**
+     * Move past the remaining elements of a {@link Marshalable} frame, including the end marker
+     *
+     * @ignore
+     */
+    private void skipFrame() {
+        for (int depth = 0; ; ) {
+            int pos = skipElement();
+            byte type = mBuffer.get(pos);
+
+            if (type == WIRE_SPAN || type == WIRE_SEGMENT) {
+                skipSpan(pos);
+
+            } else if (type == WIRE_BEGIN) {
+                depth++;
+
+            } else if (type == WIRE_END && depth-- == 0) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Move past the next value written by {@link #writeValue(Object)}, without decoding it.
+     * Large arrays and collections are preceded by their size in bytes, and are skipped in a single step.
+     */
+    public void skipValue() {
+        if (mPointer < mLength && mBuffer.get(mPointer) == WIRE_SEGMENT) {
+            skipElement();
+        }
+
+        if (mPointer < mLength && mBuffer.get(mPointer) == WIRE_BACKREF) {
+            skipElement(); return;
+        }
+
+        int type = skipInt();
+        int N;
+
+        if (mPointer < mLength && mBuffer.get(mPointer) == WIRE_SPAN) {
+            skipSpan(skipElement()); return;
+        }
+
+        switch (type) {
+            case TYPE_NULL:
+                break;
+
+            case TYPE_MARSHALABLE:
+            case TYPE_ADAPTER:
+                skipMarshalable(); break;
+
+            case TYPE_MARSHALABLEARRAY:
+                N = skipInt();
+
+                for (int i=0; i < N; i++) {
+                    skipMarshalable();
+                }
+
+                break;
+
+            case TYPE_STRING:
+            case TYPE_INTEGERARRAY:
+            case TYPE_LONGARRAY:
+            case TYPE_DOUBLEARRAY:
+            case TYPE_FLOATARRAY:
+            case TYPE_BYTEARRAY:
+            case TYPE_CHARARRAY:
+            case TYPE_SERIALIZEABLE:
+                skipArray(); break;
+
+            case TYPE_STRINGARRAY:
+            case TYPE_SERIALIZEABLEARRAY:
+                N = skipInt();
+
+                for (int i=0; i < N; i++) {
+                    skipArray();
+                }
+
+                break;
+
+            case TYPE_INTEGER:
+            case TYPE_LONG:
+            case TYPE_DOUBLE:
+            case TYPE_FLOAT:
+            case TYPE_BOOLEAN:
+            case TYPE_BYTE:
+            case TYPE_CHAR:
+                skipElement(); break;
+
+            case TYPE_BOOLEANARRAY:
+                N = skipInt();
+
+                for (int i=0; i < N; i++) {
+                    skipElement();
+                }
+
+                break;
+
+            case TYPE_OBJECTARRAY:
+            case TYPE_LIST:
+            case TYPE_SET:
+                N = skipInt();
+
+                for (int i=0; i < N; i++) {
+                    skipValue();
+                }
+
+                break;
+
+            case TYPE_MAP:
+                N = skipInt() * 2;
+
+                for (int i=0; i < N; i++) {
+                    skipValue();
+                }
+
+                break;
+
+            case TYPE_TYPEDMAP:
+                skipTyped(); skipTyped(); break;
+
+            case TYPE_TYPEDLIST:
+            case TYPE_TYPEDSET:
+                skipTyped(); break;
+
+            default:
+                throw new RuntimeException("The marshalled data is malformed, unknown value type '" + type + "'");
+        }
+    }
+
+    /**
+     * Move past the values of a typed collection
+     *
+     * @ignore
+     */
+    private void skipTyped() {
+        if (skipInt() == TYPE_STRING) {
+            for (int i=0, N=skipInt(); i < N; i++) {
+                skipArray();
+            }
+
+        } else {
+            skipArray();
+        }
+    }
+
+    /**
+     * Move past the content of a span, once the span element itself has been skipped
+     *
+     * @ignore
+     */
+    private void skipSpan(int pos) {
+        int end = mPointer + mBuffer.getInt(pos + 1);
+
+        if (end < mPointer || end > mLength) {
+            throw new Underflow();
+        }
+
+        mPointer = end;
+    }
+
+    /**
+     * Write a span or segment element holding the size of the data that follows it
+     *
+     * @ignore
+     */
+    private int writeSpan(byte type, int size) {
+        int pos = reserve(5);
+
+        mBuffer.put(pos, type);
+        mBuffer.putInt(pos + 1, size);
+        mSpanned = true;
+
+        if (mDeferred) {
+            mark(pos, null);
+        }
+
+        return pos;
+    }
+
+    /**
+     * Start a span in front of a value with {@code count} items. Spans are only written in front of
+     * large values that are appended to a marshal which is not streamed, where they can be sized afterwards.
+     *
+     * @return
+     *      The position of the span, or {@code -1} if no span was written
+     *
+     * @ignore
+     */
+    private int beginSpan(int count) {
+        if (count < SPAN_MIN_COUNT || mBlockSize > 0 || mPointer != mLength) {
+            return -1;
+        }
+
+        return writeSpan(WIRE_SPAN, 0);
+    }
+
+    /**
+     * End the current segment of a collection with {@code count} values and start the next one.
+     * Large collections are split into segments of {@link #SEGMENT_SIZE} values, each holding its size,
+     * so that readers can locate and decode them in parallel.
+     *
+     * @return
+     *      The position of the new segment, or {@code -1} if the collection is not segmented
+     *
+     * @ignore
+     */
+    private int nextSegment(int pos, int count) {
+        endSpan(pos);
+
+        if (count < PARALLEL_MIN_COUNT || mBlockSize > 0 || mPointer != mLength) {
+            return -1;
+        }
+
+        return writeSpan(WIRE_SEGMENT, 0);
+    }
+
+    /**
+     * @ignore
+     */
+    private void endSpan(int pos) {
+        if (pos >= 0) {
+            mBuffer.putInt(pos + 1, mLength - (pos + 5));
+        }
+    }
+
+    /**
+     * Update the size of all spans containing an element that changes size by {@code delta}
+     *
+     * @ignore
+     */
+    private void resizeSpans(int pos, int delta) {
+        for (int i=0; i < pos; i += sizeOfElement(i)) {
+            if (mBuffer.get(i) == WIRE_SPAN || mBuffer.get(i) == WIRE_SEGMENT) {
+                int size = mBuffer.getInt(i + 1);
+
+                if (i + 5 + size > pos) {
+                    mBuffer.putInt(i + 1, size + delta);
+                }
+            }
+        }
+    }
+
+    /**
+     * @ignore
+     */
+    private static int countOf(int type, Object data) {
+        switch (type) {
+            case TYPE_MARSHALABLEARRAY:
+            case TYPE_STRINGARRAY:
+            case TYPE_SERIALIZEABLEARRAY:
+            case TYPE_OBJECTARRAY:
+                return ((Object[]) data).length;
+
+            case TYPE_BOOLEANARRAY:
+                return ((boolean[]) data).length;
+
+            case TYPE_LIST:
+            case TYPE_SET:
+            case TYPE_TYPEDLIST:
+            case TYPE_TYPEDSET:
+                return ((Collection<?>) data).size();
+
+            case TYPE_MAP:
+            case TYPE_TYPEDMAP:
+                return ((Map<?, ?>) data).size() * 2;
+        }
+
+        return 0;
+    }
+
+    /**
+     * @ignore
+     */
+    private int sizeOfElement(int pos) {
+        byte type = mBuffer.get(pos);
+
+        switch (type) {
+            case WIRE_BEGIN:
+            case WIRE_END:
+                return 1;
+
+            case WIRE_INT:
+            case WIRE_LONG:
+            case WIRE_CHAR:
+            case WIRE_REFERENCE:
+            case WIRE_BACKREF:
+            case WIRE_FIELD:
+                int end = pos + 1;
+
+                while (end < mLength && mBuffer.get(end) < 0) {
+                    end++;
+                }
+
+                return end + 1 - pos;
+
+            case WIRE_FLOAT:
+            case WIRE_SPAN:
+            case WIRE_SEGMENT:
+                return 5;
+
+            case WIRE_DOUBLE:
+                return 9;
+
+            case WIRE_BYTE:
+                return 2;
+
+            case WIRE_STRING:
+            case WIRE_DEFINE:
+            case WIRE_INDEX:
+            case WIRE_BYTEARRAY:
+            case WIRE_CHARARRAY:
+            case WIRE_INTARRAY:
+            case WIRE_FLOATARRAY:
+            case WIRE_LONGARRAY:
+            case WIRE_DOUBLEARRAY:
+                int header = pos + 1;
+
+                while (header < mLength && mBuffer.get(header) < 0) {
+                    header++;
+                }
+
+                if (header >= mLength) {
+                    return header + 1 - pos;
+                }
+
+                return (header + 1 - pos) + (getVarInt(pos + 1) * widthOfArray(type));
+
+            default:
+                throw new RuntimeException("The marshalled data is malformed, unknown type '" + type + "' at offset " + pos);
+        }
+    }
+
+    /**
+     * @ignore
+     */
+    private static int widthOfArray(byte type) {
+        switch (type) {
+            case WIRE_STRING:
+            case WIRE_DEFINE:
+            case WIRE_INDEX:
+            case WIRE_BYTEARRAY:
+                return 1;
+
+            case WIRE_CHARARRAY:
+                return 2;
+
+            case WIRE_LONGARRAY:
+            case WIRE_DOUBLEARRAY:
+                return 8;
+
+            default:
+                return 4;
+        }
+    }
+
+    /**
+     * @ignore
+     */
+    private static int encodeZigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    /**
+     * @ignore
+     */
+    private static long encodeZigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * @ignore
+     */
+    private static int decodeZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * @ignore
+     */
+    private static long decodeZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * @ignore
+     */
+    private static int sizeOfVarInt(int value) {
+        int size = 1;
+
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7; size++;
+        }
+
+        return size;
+    }
+
+    /**
+     * @ignore
+     */
+    private static int sizeOfVarLong(long value) {
+        int size = 1;
+
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7; size++;
+        }
+
+        return size;
+    }
+
+    /**
+     * @ignore
+     */
+    private int putVarInt(int pos, int value) {
+        while ((value & ~0x7F) != 0) {
+            mBuffer.put(pos++, (byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+
+        mBuffer.put(pos++, (byte) value);
+
+        return pos;
+    }
+
+    /**
+     * @ignore
+     */
+    private int putVarLong(int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            mBuffer.put(pos++, (byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+
+        mBuffer.put(pos++, (byte) value);
+
+        return pos;
+    }
+
+    /**
+     * @ignore
+     */
+    private int getVarInt(int pos) {
+        int value = 0;
+
+        for (int shift=0; shift < 32; shift += 7) {
+            byte b = mBuffer.get(pos++);
+            value |= (b & 0x7F) << shift;
+
+            if (b >= 0) {
+                return value;
+            }
+        }
+
+        throw new RuntimeException("Malformed variable length integer at offset " + pos);
+    }
+
+    /**
+     * @ignore
+     */
+    private long getVarLong(int pos) {
+        long value = 0;
+
+        for (int shift=0; shift < 64; shift += 7) {
+            byte b = mBuffer.get(pos++);
+            value |= (long) (b & 0x7F) << shift;
+
+            if (b >= 0) {
+                return value;
+            }
+        }
+
+        throw new RuntimeException("Malformed variable length integer at offset " + pos);
+    }
+
+    /**
+     * @ignore
+     */
+    private int readVarInt() {
+        int value = 0;
+
+        for (int shift=0; shift < 32; shift += 7) {
+            byte b = mBuffer.get(mPointer++);
+            value |= (b & 0x7F) << shift;
+
+            if (b >= 0) {
+                return value;
+            }
+        }
+
+        throw new RuntimeException("Malformed variable length integer at offset " + mPointer);
+    }
+
+    /**
+     * @ignore
+     */
+    private long readVarLong() {
+        long value = 0;
+
+        for (int shift=0; shift < 64; shift += 7) {
+            byte b = mBuffer.get(mPointer++);
+            value |= (long) (b & 0x7F) << shift;
+
+            if (b >= 0) {
+                return value;
+            }
+        }
+
+        throw new RuntimeException("Malformed variable length integer at offset " + mPointer);
+    }
+
+
+    /* =============================================================
+     * -------------------------------------------------------------
+     * SERIALIZABLE
+     */
+
+    /**
+     * Use something other than Java serialization for {@link Serializable} values.
+     * Pass {@code null} to restore the default.
+     */
+    public void setExternalizer(MarshalExternalizer externalizer) {
+        mExternalizer = externalizer;
+    }
+
+    /**
+     *
+     */
+    public <T extends Serializable> void writeSerializable(T data) {
+        if (data != null) {
+            if (mBlobStream == null) {
+                mBlobStream = new BlobStream();
+            }
+
+            BlobStream stream = mBlobStream;
+
+            /*
+             * The externalizer could end up writing more values to this marshal
+             */
+            mBlobStream = null;
+
+            try {
+                stream.reset();
+
+                if (mExternalizer != null) {
+                    mExternalizer.writeObject(data, stream);
+
+                } else {
+                    ObjectOutputStream objectStream = new ObjectOutputStream(stream);
+
+                    objectStream.writeObject(data);
+                    objectStream.flush();
+                }
+
+                writeByteArray(stream.getBuffer(), 0, stream.size());
+
+            } catch (Throwable e) {
+                throw new RuntimeException(e.getMessage(), e);
+
+            } finally {
+                mBlobStream = stream;
+            }
+
+        } else {
+            writeByteArray(null);
+        }
+    }
+
+    /**
+     *
+     */
+    public <T extends Serializable> void writeSerializableArray(T[] data) {
+        if (data != null) {
+            writeInt(data.length);
+
+            for (int i=0; i < data.length; i++) {
+                writeSerializable(data[i]);
+            }
+
+        } else {
+            writeInt(-1);
+        }
+    }
+
+    /**
+     *
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Serializable> T readSerializable() {
+        try {
+            ByteArrayInputStream byteStream;
+
+            if (peekType() == WIRE_BYTEARRAY && mBuffer.hasArray()) {
+                /*
+                 * Read directly from the marshal buffer instead of copying the blob
+                 */
+                int N = readArrayLength(WIRE_BYTEARRAY, 1, Integer.MAX_VALUE);
+                byteStream = new ByteArrayInputStream(mBuffer.array(), mBuffer.arrayOffset() + mPointer - N, N);
+
+            } else {
+                byte[] data = readByteArray();
+                byteStream = data != null ? new ByteArrayInputStream(data) : null;
+            }
+
+            if (byteStream != null) {
+                if (mExternalizer != null) {
+                    return (T) mExternalizer.readObject(byteStream);
+                }
+
+                ObjectInputStream objectStream = new ObjectInputStream(byteStream);
+
+                T object = (T) objectStream.readObject();
+
+                objectStream.close();
+
+                return object;
+            }
+
+        } catch (Throwable e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+
+        return null;
+    }
+
+    /**
+     *
+     */
+    public Serializable[] readSerializableArray() {
+        int N = readInt();
+
+        if (N >= 0) {
+            Serializable[] array = new Serializable[N];
+
+            for (int i = 0; i < N; i++) {
+                array[i] = readSerializable();
+            }
+
+            return array;
+        }
+
+        return null;
+    }
+
+    /**
+     *
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Serializable> T[] readSerializableArray(Class<T> clazz) {
+        int N = readInt();
+
+        if (N >= 0) {
+            T[] array = (T[]) Array.newInstance(clazz, N);
+
+            for (int i = 0; i < N; i++) {
+                array[i] = readSerializable();
+            }
+
+            return array;
+        }
+
+        return null;
+    }
+
+
+    /* =============================================================
+     * -------------------------------------------------------------
+     * MARSHALABLE
+     */
+
+    /**
+     * Register a factory used to restore a {@link Marshalable} type, instead of
+     * looking up its {@code Marshal} constructor using reflection
+     */
+    public static <T extends Marshalable> void registerCreator(Class<T> clazz, Marshalable.Creator<T> creator) {
+        CREATORS.put(clazz.getName(), creator);
+    }
+
+    /**
+     * Find the creator for a signature. A public static {@code CREATOR} field is used when the class declares one itself,
+     * otherwise the {@code Marshal} constructor. Reflective lookups are only done once per signature,
+     * including the ones that fail.
+     *
+     * @ignore
+     */
+    private static Marshalable.Creator<?> findCreator(String signature) {
+        Marshalable.Creator<?> creator = CREATORS.get(signature);
+
+        if (creator == null) {
+            try {
+                Class<? extends Marshalable> clazz = Class.forName(signature).asSubclass(Marshalable.class);
+
+                try {
+                    Field field = clazz.getField("CREATOR");
+
+                    /*
+                     * A creator inherited from a superclass would build the superclass instead
+                     */
+                    if (field.getDeclaringClass() == clazz && Modifier.isStatic(field.getModifiers()) && Marshalable.Creator.class.isAssignableFrom(field.getType())) {
+                        creator = (Marshalable.Creator<?>) field.get(null);
+                    }
+
+                } catch (NoSuchFieldException e) {}
+
+                if (creator == null) {
+                    creator = new ConstructorCreator(clazz.getConstructor(Marshal.class));
+                }
+
+            } catch (Throwable e) {
+                creator = NO_CREATOR;
+            }
+
+            Marshalable.Creator<?> current = CREATORS.putIfAbsent(signature, creator);
+
+            if (current != null) {
+                creator = current;
+            }
+        }
+
+        return creator != NO_CREATOR ? creator : null;
+    }
+
+    /**
+     *
+     */
+    public <T extends Marshalable> void writeMarshalable(T data) {
+        if (data != null) {
+            String signature = data.getMarshalSignature();
+
+            if (signature != null && findCreator(signature) == null) {
+                signature = null;
+            }
+
+            if (signature == null) {
+                signature = data.getClass().getName();
+            }
+
+            if (writeReference(data, true)) {
+                return;
+            }
+
+            writeMarker(WIRE_BEGIN);
+
+            writeString(signature);
+            data.writeToMarshal(this);
+
+            writeMarker(WIRE_END);
+
+            if (mWritten != null) {
+                Integer position = mWritten.get(data);
+
+                if (position != null && position < 0) {
+                    mWritten.put(data, ~position);
+                }
+            }
+
+        } else {
+            writeString(null);
+        }
+    }
+
+    /**
+     *
+     */
+    public <T extends Marshalable> void writeMarshalableArray(T[] data) {
+        if (data != null) {
+            writeInt(data.length);
+
+            for (int i=0; i < data.length; i++) {
+                writeMarshalable(data[i]);
+            }
+
+        } else {
+            writeInt(-1);
+        }
+    }
+
+    /**
+     *
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Marshalable> T readMarshalable() {
+        if (peekType() == WIRE_BACKREF) {
+            return (T) readReference();
+        }
+
+        int position = mPointer;
+        boolean framed = peekType() == WIRE_BEGIN;
+
+        if (framed) {
+            mPointer++;
+
+            if (mTracking) {
+                trackValue(position, IN_PROGRESS);
+            }
+        }
+
+        String className = readString();
+
+        if (className != null) {
+            Marshalable.Creator<?> creator = findCreator(className);
+
+            if (creator == null) {
+                throw new RuntimeException("The class '" + className + "' cannot be restored, it has no creator and no public constructor taking a Marshal");
+            }
+
+            T object = (T) creator.createFromMarshal(this);
+
+            if (framed) {
+                skipFrame();
+
+                if (mTracking) {
+                    trackValue(position, object);
+                }
+            }
+
+            return object;
+        }
+
+        return null;
+    }
+
+    /**
+     *
+     */
+    public Marshalable[] readMarshalableArray() {
+        int N = readInt();
+
+        if (N >= 0) {
+            Marshalable[] array = new Marshalable[N];
+
+            for (int i = 0; i < N; i++) {
+                array[i] = readMarshalable();
+            }
+
+            return array;
+        }
+
+        return null;
+    }
+
+    /**
+     *
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Marshalable> T[] readMarshalableArray(Class<T> clazz) {
+        int N = readInt();
+
+        if (N >= 0) {
+            T[] array = (T[]) Array.newInstance(clazz, N);
+
+            for (int i = 0; i < N; i++) {
+                array[i] = readMarshalable();
+            }
+
+            return array;
+        }
+
+        return null;
+    }
+
+
+    /* =============================================================
+     * -------------------------------------------------------------
+     * FIELDS
+     */
+
+    /**
+     * Start a tagged field. Everything written after this, until the next field or the end of the
+     * {@link Marshalable}, belongs to the field. Readers use {@link #readField()} to get the id,
+     * and fields that a reader does not know are skipped. This allows fields to be added to or removed from
+     * a type without changing its {@link Marshalable#getMarshalSignature()}, and without converting data
+     * written by earlier versions.
+     *
+     * @param id
+     *      A non-negative id that identifies the field within its type
+     */
+    public void writeField(int id) {
+        if (id < 0) {
+            throw new RuntimeException("Field id '" + id + "' is invalid, field ids cannot be negative");
+        }
+
+        int pos = reserve(1 + sizeOfVarInt(id));
+
+        mBuffer.put(pos, WIRE_FIELD);
+        putVarInt(pos + 1, id);
+    }
+
+    /**
+     * Move to the next tagged field written by {@link #writeField(int)}. Whatever is left of
+     * the current field is skipped, without being decoded.
+     *
+     * @return
+     *      The id of the field, or {@code -1} when there are no more fields in the current {@link Marshalable}
+     */
+    public int readField() {
+        for (int depth = 0; mPointer < mLength; ) {
+            byte type = mBuffer.get(mPointer);
+
+            if (depth == 0 && type == WIRE_FIELD) {
+                return getVarInt(skipElement() + 1);
+
+            } else if (type == WIRE_END && depth-- == 0) {
+                break;
+
+            } else if (type == WIRE_BEGIN) {
+                depth++;
+
+            } else if (type == WIRE_SPAN || type == WIRE_SEGMENT) {
+                skipSpan(skipElement()); continue;
+            }
+
+            skipElement();
+        }
+
+        return -1;
+    }
+
+
+    /* =============================================================
+     * -------------------------------------------------------------
+     * STRING
+     */
+
+    /**
+     *
+     */
+    public void writeString(String data) {
+        if (data == null) {
+            writeInt(-1);
+
+        } else if (mDeferred && mPointer == mLength && data.length() >= DICTIONARY_MIN_LENGTH && data.length() <= DICTIONARY_MAX_LENGTH) {
+            /*
+             * Part of a parallel encoding, the string is written when the parts are joined.
+             * Until then, a single byte keeps its place.
+             */
+            mark(mLength, data);
+            writeMarker(WIRE_STRING);
+
+        } else if (mPointer == mLength && data.length() >= DICTIONARY_MIN_LENGTH && data.length() <= DICTIONARY_MAX_LENGTH) {
+            /*
+             * Only appended strings can be added to the dictionary,
+             * a definition must always come before any reference to it.
+             */
+            Integer id = mDictionary != null ? mDictionary.get(data) : null;
+
+            if (id != null) {
+                int pos = reserve(1 + sizeOfVarInt(id));
+
+                mBuffer.put(pos, WIRE_REFERENCE);
+                putVarInt(pos + 1, id);
+
+            } else {
+                /*
+                 * A streaming marshal only writes its own definitions,
+                 * and the data is not kept around to be scanned.
+                 */
+                int count = mBlockSize > 0 ? (mDictionary != null ? mDictionary.size() : 0) : scanDefinitions(-1);
+
+                if (count < DICTIONARY_SIZE) {
+                    if (mDictionary == null) {
+                        mDictionary = new HashMap<String, Integer>();
+                    }
+
+                    mDictionary.put(data, count);
+                    writeChars(data, WIRE_DEFINE);
+
+                } else {
+                    writeChars(data, WIRE_STRING);
+                }
+            }
+
+        } else {
+            writeChars(data, WIRE_STRING);
+        }
+    }
+
+    /**
+     *
+     */
+    public void writeStringArray(String[] data) {
+        if (data != null) {
+            writeInt(data.length);
+
+            for (String str : data) {
+                writeString(str);
+            }
+
+        } else {
+            writeInt(-1);
+        }
+    }
+
+    /**
+     *
+     */
+    public String readString() {
+        byte type = peekType();
+
+        if (type == WIRE_STRING || type == WIRE_DEFINE) {
+            int N = readArrayLength(type, 1, Integer.MAX_VALUE);
+            char[] out = new char[N];
+
+            return new String(out, 0, decodeUtf8(mPointer - N, N, out));
+
+        } else if (type == WIRE_REFERENCE) {
+            mPointer++;
+
+            int id = readVarInt();
+
+            if (scanDefinitions(id) <= id) {
+                throw new RuntimeException("The marshalled data is malformed, unknown dictionary string '" + id + "' at offset " + (mPointer - 1));
+            }
+
+            String value = mDefinitionValues[id];
+
+            if (value == null) {
+                int pos = mDefinitions[id] + 1;
+                int N = getVarInt(pos);
+                char[] out = new char[N];
+
+                value = mDefinitionValues[id] = new String(out, 0, decodeUtf8(pos + sizeOfVarInt(N), N, out));
+            }
+
+            return value;
+        }
+
+        char[] chars = readCharArray();
+
+        if (chars != null) {
+            return new String(chars);
+        }
+
+        return null;
+    }
+
+    /**
+     *
+     */
+    public String[] readStringArray() {
+        int N = readInt();
+
+        if (N >= 0) {
+            String[] out = new String[N];
+
+            for (int i=0; i < N; i++) {
+                out[i] = readString();
+            }
+
+            return out;
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Strings are stored as UTF-8. Surrogates that are not part of a pair are encoded
+     * on their own, the same way as any other 3 byte character, so that any String
+     * can be restored exactly.
+     *
+     * @ignore
+     */
+    private void writeChars(CharSequence data, byte type) {
+        int length = data.length();
+        int size = length;
+
+        for (int i=0; i < length; i++) {
+            char c = data.charAt(i);
+
+            if (c >= 0x80) {
+                if (c < 0x800) {
+                    size += 1;
+
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(data.charAt(i + 1))) {
+                    size += 2; i++;
+
+                } else {
+                    size += 2;
+                }
+            }
+        }
+
+        int pos = reserveArray(type, size, 1);
+
+        if (mPointer - pos < size) {
+            /*
+             * A streaming marshal splits elements larger than a block,
+             * strings are kept in one piece by growing the block instead.
+             */
+            ensureCapacity(pos + size);
+            mLength = mPointer = pos + size;
+        }
+
+        for (int i=0; i < length; i++) {
+            char c = data.charAt(i);
+
+            if (c < 0x80) {
+                mBuffer.put(pos++, (byte) c);
+
+            } else if (c < 0x800) {
+                mBuffer.put(pos++, (byte) (0xC0 | (c >> 6)));
+                mBuffer.put(pos++, (byte) (0x80 | (c & 0x3F)));
+
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(data.charAt(i + 1))) {
+                int point = Character.toCodePoint(c, data.charAt(++i));
+
+                mBuffer.put(pos++, (byte) (0xF0 | (point >> 18)));
+                mBuffer.put(pos++, (byte) (0x80 | ((point >> 12) & 0x3F)));
+                mBuffer.put(pos++, (byte) (0x80 | ((point >> 6) & 0x3F)));
+                mBuffer.put(pos++, (byte) (0x80 | (point & 0x3F)));
+
+            } else {
+                mBuffer.put(pos++, (byte) (0xE0 | (c >> 12)));
+                mBuffer.put(pos++, (byte) (0x80 | ((c >> 6) & 0x3F)));
+                mBuffer.put(pos++, (byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /**
+     * Locate dictionary definitions up to the given id, or all of them when the id is negative.
+     * Only positions are cached, since the content of a definition never changes.
+     *
+     * @return
+     *      The number of definitions found
+     *
+     * @ignore
+     */
+    private int scanDefinitions(int id) {
+        return scanDefinitions(id, mLength);
+    }
+
+    /**
+     * Same as {@link #scanDefinitions(int)}, but without scanning past {@code end}
+     *
+     * @ignore
+     */
+    private int scanDefinitions(int id, int end) {
+        while ((id < 0 || mDefinitionCount <= id) && mDefinitionScan < end) {
+            int pos = mDefinitionScan;
+            int size = sizeOfElement(pos);
+
+            if (pos + size > mLength) {
+                break;
+
+            } else if (mBuffer.get(pos) == WIRE_DEFINE) {
+                addDefinition(pos);
+            }
+
+            mDefinitionScan = pos + size;
+        }
+
+        return mDefinitionCount;
+    }
+
+    /**
+     * @ignore
+     */
+    private void addDefinition(int pos) {
+        if (mDefinitions == null || mDefinitionCount == mDefinitions.length) {
+            int[] definitions = new int[mDefinitions == null ? INITIAL_CAPACITY : (int) (mDefinitions.length * BUFFER_RESIZE) + 1];
+            String[] values = new String[definitions.length];
+
+            if (mDefinitions != null) {
+                System.arraycopy(mDefinitions, 0, definitions, 0, mDefinitionCount);
+                System.arraycopy(mDefinitionValues, 0, values, 0, mDefinitionValues.length);
+            }
+
+            mDefinitions = definitions;
+            mDefinitionValues = values;
+        }
+
+        mDefinitions[mDefinitionCount++] = pos;
+    }
+
+    /**
+     * Decode UTF-8 data into a char array that is at least {@code size} long
+     *
+     * @return
+     *      The number of chars decoded
+     *
+     * @ignore
+     */
+    private int decodeUtf8(int pos, int size, char[] out) {
+        int end = pos + size;
+        int count = 0;
+
+        while (pos < end) {
+            int b = mBuffer.get(pos++);
+
+            if (b >= 0) {
+                out[count++] = (char) b;
+                continue;
+            }
+
+            int extra = (b & 0xE0) == 0xC0 ? 1 : (b & 0xF0) == 0xE0 ? 2 : (b & 0xF8) == 0xF0 ? 3 : 0;
+
+            if (extra == 0 || pos + extra > end) {
+                throw new RuntimeException("The marshalled data is malformed, invalid UTF-8 sequence at offset " + (pos - 1));
+            }
+
+            int point = b & (0x3F >> extra);
+
+            for (int i=0; i < extra; i++) {
+                point = (point << 6) | (mBuffer.get(pos++) & 0x3F);
+            }
+
+            if (extra == 3) {
+                out[count++] = (char) (0xD7C0 + (point >>> 10));
+                out[count++] = (char) (0xDC00 | (point & 0x3FF));
+
+            } else {
+                out[count++] = (char) point;
+            }
+        }
+
+        return count;
+    }
+
+
+    /* =============================================================
+     * -------------------------------------------------------------
+     * INTEGER
+     */
+
+    /**
+     *
+     */
+    public void writeInt(int data) {
+        int value = encodeZigZag(data);
+        int pos = reserve(1 + sizeOfVarInt(value));
+
+        mBuffer.put(pos, WIRE_INT);
+        putVarInt(pos + 1, value);
+    }
+
+    /**
+     *
+     */
+    public void writeIntArray(int[] data) {
+        if (data != null) {
+            writeIntArray(data, 0, data.length);
+
+        } else {
+            writeInt(-1);
+        }
+    }
+
+    /**
+     *
+     */
+    public void writeIntArray(int[] data, int offset, int length) {
+        checkBounds(data.length, offset, length);
+
+        int pos = reserveArray(WIRE_INTARRAY, length, 4);
+        int count;
+
+        while ((count = (mPointer - pos) / 4) < length) {
+            view(pos).asIntBuffer().put(data, offset, count);
+
+            offset += count;
+            length -= count;
+            pos = reserveChunk(length, 4);
+        }
+
+        view(pos).asIntBuffer().put(data, offset, length);
+    }
+
+    /**
+     *
+     */
+    public int readInt() {
+        require(WIRE_INT);
+
+        return decodeZigZag(readVarInt());
+    }
+
+    /**
+     *
+     */
+    public int[] readIntArray() {
+        if (peekType() == WIRE_INTARRAY) {
+            int N = readArrayLength(WIRE_INTARRAY, 4, Integer.MAX_VALUE);
+            int[] out = new int[N];
+
+            view(mPointer - N * 4).asIntBuffer().get(out);
+
+            return out;
+        }
+
+        int N = readInt();
+
+        if (N >= 0) {
+            int[] out = new int[N];
+
+            for (int i=0; i < N; i++) {
+                out[i] = readInt();
+            }
+
+            return out;
+        }
+
+        return null;
+    }
+
+    /**
+     * Read the next array into an existing one
+     *
+     * @return
+     *      The number of values read or {@code -1} if the array was {@code null}
+     */
+    public int readIntArray(int[] out, int offset, int length) {
+        checkBounds(out.length, offset, length);
+
+        if (peekType() == WIRE_INTARRAY) {
+            int N = readArrayLength(WIRE_INTARRAY, 4, length);
+
+            view(mPointer - N * 4).asIntBuffer().get(out, offset, N);
+
+            return N;
+        }
+
+        int N = readInt();
+
+        if (N > length) {
+            throw new ArrayIndexOutOfBoundsException("length=" + length + "; required: " + N);
+        }
+
+        for (int i=0; i < N; i++) {
+            out[offset + i] = readInt();
+        }
+
+        return N;
+    }
+
+
+    /* =============================================================
+     * -------------------------------------------------------------
+     * LONG
+     */
+
+    /**
+     *
+     */
+    public void writeLong(long data) {
+        long value = encodeZigZag(data);
+        int pos = reserve(1 + sizeOfVarLong(value));
+
+        mBuffer.put(pos, WIRE_LONG);
+        putVarLong(pos + 1, value);
+    }
+
+    /**
+     *
+     */
+    public void writeLongArray(long[] data) {
+        if (data != null) {
+            writeLongArray(data, 0, data.length);
+
+        } else {
+            writeInt(-1);
+        }
+    }
+
+    /**
+     *
+     */
+    public void writeLongArray(long[] data, int offset, int length) {
+        checkBounds(data.length, offset, length);
+
+        int pos = reserveArray(WIRE_LONGARRAY, length, 8);
+        int count;
+
+        while ((count = (mPointer - pos) / 8) < length) {
+            view(pos).asLongBuffer().put(data, offset, count);
+
+            offset += count;
+            length -= count;
+            pos = reserveChunk(length, 8);
+        }
+
+        view(pos).asLongBuffer().put(data, offset, length);
+    }
+
+    /**
+     *
+     */
+    public long readLong() {
+        require(WIRE_LONG);
+
+        return decodeZigZag(readVarLong());
+    }
+
+    /**
+     *
+     */
+    public long[] readLongArray() {
+        if (peekType() == WIRE_LONGARRAY) {
+            int N = readArrayLength(WIRE_LONGARRAY, 8, Integer.MAX_VALUE);
+            long[] out = new long[N];
+
+            view(mPointer - N * 8).asLongBuffer().get(out);
+
+            return out;
+        }
+
+        int N = readInt();
+
+        if (N >= 0) {
+            long[] out = new long[N];
+
+            for (int i=0; i < N; i++) {
+                out[i] = readLong();
+            }
+
+            return out;
+        }
+
+        return null;
+    }
+
+    /**
+     * Read the next array into an existing one
+     *
+     * @return
+     *      The number of values read or {@code -1} if the array was {@code null}
+     */
+    public int readLongArray(long[] out, int offset, int length) {
+        checkBounds(out.length, offset, length);
+
+        if (peekType() == WIRE_LONGARRAY) {
+            int N = readArrayLength(WIRE_LONGARRAY, 8, length);
+
+            view(mPointer - N * 8).asLongBuffer().get(out, offset, N);
+
+            return N;
+        }
+
+        int N = readInt();
+
+        if (N > length) {
+            throw new ArrayIndexOutOfBoundsException("length=" + length + "; required: " + N);
+        }
+
+        for (int i=0; i < N; i++) {
+            out[offset + i] = readLong();
+        }
+
+        return N;
+    }
+
+
+    /* =============================================================
+     * -------------------------------------------------------------
+     * FLOAT
+     */
+
+    /**
+     *
+     */
+    public void writeFloat(float data) {
+        int pos = reserve(5);
+
+        mBuffer.put(pos, WIRE_FLOAT);
+        mBuffer.putFloat(pos + 1, data);
+    }
+
+    /**
+     *
+     */
+    public void writeFloatArray(float[] data) {
+        if (data != null) {
+            writeFloatArray(data, 0, data.length);
+
+        } else {
+            writeInt(-1);
+        }
+    }
+
+    /**
+     *
+     */
+    public void writeFloatArray(float[] data, int offset, int length) {
+        checkBounds(data.length, offset, length);
+
+        int pos = reserveArray(WIRE_FLOATARRAY, length, 4);
+        int count;
+
+        while ((count = (mPointer - pos) / 4) < length) {
+            view(pos).asFloatBuffer().put(data, offset, count);
+
+            offset += count;
+            length -= count;
+            pos = reserveChunk(length, 4);
+        }
+
+        view(pos).asFloatBuffer().put(data, offset, length);
+    }
+
+    /**
+     *
+     */
+    public float readFloat() {
+        int pos = require(WIRE_FLOAT);
+        mPointer += 4;
+
+        return mBuffer.getFloat(pos + 1);
+    }
+
+    /**
+     *
+     */
+    public float[] readFloatArray() {
+        if (peekType() == WIRE_FLOATARRAY) {
+            int N = readArrayLength(WIRE_FLOATARRAY, 4, Integer.MAX_VALUE);
+            float[] out = new float[N];
+
+            view(mPointer - N * 4).asFloatBuffer().get(out);
+
+            return out;
+        }
+
+        int N = readInt();
+
+        if (N >= 0) {
+            float[] out = new float[N];
+
+            for (int i=0; i < N; i++) {
+                out[i] = readFloat();
+            }
+
+            return out;
+        }
+
+        return null;
+    }
+
+    /**
+     * Read the next array into an existing one
+     *
+     * @return
+     *      The number of values read or {@code -1} if the array was {@code null}
+     */
+    public int readFloatArray(float[] out, int offset, int length) {
+        checkBounds(out.length, offset, length);
+
+        if (peekType() == WIRE_FLOATARRAY) {
+            int N = readArrayLength(WIRE_FLOATARRAY, 4, length);
+
+            view(mPointer - N * 4).asFloatBuffer().get(out, offset, N);
+
+            return N;
+        }
+
+        int N = readInt();
+
+        if (N > length) {
+            throw new ArrayIndexOutOfBoundsException("length=" + length + "; required: " + N);
+        }
+
+        for (int i=0; i < N; i++) {
+            out[offset + i] = readFloat();
+        }
+
+        return N;
+    }
+
+
+    /* =============================================================
+     * -------------------------------------------------------------
+     * DOUBLE
+     */
+
+    /**
+     *
+     */
+    public void writeDouble(double data) {
+        int pos = reserve(9);
+
+        mBuffer.put(pos, WIRE_DOUBLE);
+        mBuffer.putDouble(pos + 1, data);
+    }
+
+    /**
+     *
+     */
+    public void writeDoubleArray(double[] data) {
+        if (data != null) {
+            writeDoubleArray(data, 0, data.length);
+
+        } else {
+            writeInt(-1);
+        }
+    }
+
+    /**
+     *
+     */
+    public void writeDoubleArray(double[] data, int offset, int length) {
+        checkBounds(data.length, offset, length);
+
+        int pos = reserveArray(WIRE_DOUBLEARRAY, length, 8);
+        int count;
+
+        while ((count = (mPointer - pos) / 8) < length) {
+            view(pos).asDoubleBuffer().put(data, offset, count);
+
+            offset += count;
+            length -= count;
+            pos = reserveChunk(length, 8);
+        }
+
+        view(pos).asDoubleBuffer().put(data, offset, length);
+    }
+
+    /**
+     *
+     */
+    public double readDouble() {
+        int pos = require(WIRE_DOUBLE);
+        mPointer += 8;
+
+        return mBuffer.getDouble(pos + 1);
+    }
+
+    /**
+     *
+     */
+    public double[] readDoubleArray() {
+        if (peekType() == WIRE_DOUBLEARRAY) {
+            int N = readArrayLength(WIRE_DOUBLEARRAY, 8, Integer.MAX_VALUE);
+            double[] out = new double[N];
+
+            view(mPointer - N * 8).asDoubleBuffer().get(out);
+
+            return out;
+        }
+
+        int N = readInt();
+
+        if (N >= 0) {
+            double[] out = new double[N];
+
+            for (int i=0; i < N; i++) {
+                out[i] = readDouble();
+            }
+
+            return out;
+        }
+
+        return null;
+    }
+
+    /**
+     * Read the next array into an existing one
+     *
+     * @return
+     *      The number of values read or {@code -1} if the array was {@code null}
+     */
+    public int readDoubleArray(double[] out, int offset, int length) {
+        checkBounds(out.length, offset, length);
+
+        if (peekType() == WIRE_DOUBLEARRAY) {
+            int N = readArrayLength(WIRE_DOUBLEARRAY, 8, length);
+
+            view(mPointer - N * 8).asDoubleBuffer().get(out, offset, N);
+
+            return N;
+        }
+
+        int N = readInt();
+
+        if (N > length) {
+            throw new ArrayIndexOutOfBoundsException("length=" + length + "; required: " + N);
+        }
+
+        for (int i=0; i < N; i++) {
+            out[offset + i] = readDouble();
+        }
+
+        return N;
+    }
+
+
+    /* =============================================================
+     * -------------------------------------------------------------
+     * BYTE
+     */
+
+    /**
+     *
+     */
+    public void writeByte(byte data) {
+        int pos = reserve(2);
+
+        mBuffer.put(pos, WIRE_BYTE);
+        mBuffer.put(pos + 1, data);
+    }
+
+    /**
+     *
+     */
+    public void writeByteArray(byte[] data) {
+        if (data != null) {
+            writeByteArray(data, 0, data.length);
+
+        } else {
+            writeInt(-1);
+        }
+    }
+
+    /**
+     *
+     */
+    public void writeByteArray(byte[] data, int offset, int length) {
+        checkBounds(data.length, offset, length);
+
+        int pos = reserveArray(WIRE_BYTEARRAY, length, 1);
+        int count;
+
+        while ((count = (mPointer - pos)) < length) {
+            view(pos).put(data, offset, count);
+
+            offset += count;
+            length -= count;
+            pos = reserveChunk(length, 1);
+        }
+
+        view(pos).put(data, offset, length);
+    }
+
+    /**
+     *
+     */
+    public byte readByte() {
+        require(WIRE_BYTE);
+
+        return mBuffer.get(mPointer++);
+    }
+
+    /**
+     *
+     */
+    public byte[] readByteArray() {
+        if (peekType() == WIRE_BYTEARRAY) {
+            int N = readArrayLength(WIRE_BYTEARRAY, 1, Integer.MAX_VALUE);
+            byte[] out = new byte[N];
+
+            view(mPointer - N).get(out);
+
+            return out;
+        }
+
+        int N = readInt();
+
+        if (N >= 0) {
+            byte[] out = new byte[N];
+
+            for (int i=0; i < N; i++) {
+                out[i] = readByte();
+            }
+
+            return out;
+        }
+
+        return null;
+    }
+
+    /**
+     * Read the next array into an existing one
+     *
+     * @return
+     *      The number of values read or {@code -1} if the array was {@code null}
+     */
+    public int readByteArray(byte[] out, int offset, int length) {
+        checkBounds(out.length, offset, length);
+
+        if (peekType() == WIRE_BYTEARRAY) {
+            int N = readArrayLength(WIRE_BYTEARRAY, 1, length);
+
+            view(mPointer - N).get(out, offset, N);
+
+            return N;
+        }
+
+        int N = readInt();
+
+        if (N > length) {
+            throw new ArrayIndexOutOfBoundsException("length=" + length + "; required: " + N);
+        }
+
+        for (int i=0; i < N; i++) {
+            out[offset + i] = readByte();
+        }
+
+        return N;
+    }
+
+
+    /* =============================================================
+     * -------------------------------------------------------------
+     * BYTE
+     */
+
+    /**
+     *
+     */
+    public void writeChar(char data) {
+        int pos = reserve(1 + sizeOfVarInt(data));
+
+        mBuffer.put(pos, WIRE_CHAR);
+        putVarInt(pos + 1, data);
+    }
+
+    /**
+     *
+     */
+    public void writeCharArray(char[] data) {
+        if (data != null) {
+            writeCharArray(data, 0, data.length);
+
+        } else {
+            writeInt(-1);
+        }
+    }
+
+    /**
+     *
+     */
+    public void writeCharArray(char[] data, int offset, int length) {
+        checkBounds(data.length, offset, length);
+
+        int pos = reserveArray(WIRE_CHARARRAY, length, 2);
+        int count;
+
+        while ((count = (mPointer - pos) / 2) < length) {
+            view(pos).asCharBuffer().put(data, offset, count);
+
+            offset += count;
+            length -= count;
+            pos = reserveChunk(length, 2);
+        }
+
+        view(pos).asCharBuffer().put(data, offset, length);
+    }
+
+    /**
+     *
+     */
+    public char readChar() {
+        require(WIRE_CHAR);
+
+        return (char) readVarInt();
+    }
+
+    /**
+     *
+     */
+    public char[] readCharArray() {
+        if (peekType() == WIRE_CHARARRAY) {
+            int N = readArrayLength(WIRE_CHARARRAY, 2, Integer.MAX_VALUE);
+            char[] out = new char[N];
+
+            view(mPointer - N * 2).asCharBuffer().get(out);
+
+            return out;
+        }
+
+        int N = readInt();
+
+        if (N >= 0) {
+            char[] out = new char[N];
+
+            for (int i=0; i < N; i++) {
+                out[i] = readChar();
+            }
+
+            return out;
+        }
+
+        return null;
+    }
+
+    /**
+     * Read the next array into an existing one
+     *
+     * @return
+     *      The number of values read or {@code -1} if the array was {@code null}
+     */
+    public int readCharArray(char[] out, int offset, int length) {
+        checkBounds(out.length, offset, length);
+
+        if (peekType() == WIRE_CHARARRAY) {
+            int N = readArrayLength(WIRE_CHARARRAY, 2, length);
+
+            view(mPointer - N * 2).asCharBuffer().get(out, offset, N);
+
+            return N;
+        }
+
+        int N = readInt();
+
+        if (N > length) {
+            throw new ArrayIndexOutOfBoundsException("length=" + length + "; required: " + N);
+        }
+
+        for (int i=0; i < N; i++) {
+            out[offset + i] = readChar();
+        }
+
+        return N;
+    }
+
+
+    /* =============================================================
+     * -------------------------------------------------------------
+     * OBJECT ARRAYS
+     */
+
+    /**
+     *
+     */
+    public void writeArray(Object[] data) {
+        if (data != null) {
+            writeInt(data.length);
+
+            for (int i=0; i < data.length; i++) {
+                writeValue(data[i]);
+            }
+
+        } else {
+            writeInt(-1);
+        }
+    }
+
+    /**
+     *
+     */
+    public Object[] readArray() {
+        int N = readInt();
+
+        if (N >= 0) {
+            Object[] out = trackValue(mTrackPosition, new Object[N]);
+
+            for (int i=0; i < N; i++) {
+                out[i] = readValue();
+            }
+
+            return out;
+        }
+
+        return null;
+    }
+
+
+    /* =============================================================
+     * -------------------------------------------------------------
+     * COLLECTIONS
+     */
+
+    /**
+     *
+     */
+    public void writeList(List<?> data) {
+        if (data != null) {
+            int N = data.size();
+            writeInt(N);
+
+            if (isParallel(N)) {
+                writeParallel(toArray(data));
+
+            } else {
+                int segment = -1;
+
+                for (int i=0; i < N; i++) {
+                    if (i % SEGMENT_SIZE == 0) {
+                        segment = nextSegment(segment, N);
+                    }
+
+                    writeValue(data.get(i));
+                }
+
+                endSpan(segment);
+            }
+
+        } else {
+            writeInt(-1);
+        }
+    }
+
+    /**
+     *
+     */
+    public List<?> readList() {
+        int N = readInt();
+
+        if (N >= 0) {
+            List<Object> out = trackValue(mTrackPosition, new SwiftList<Object>());
+
+            if (isParallelRead(N)) {
+                Object[] values = readParallel(N);
+
+                for (int i=0; i < N; i++) {
+                    out.add(values[i]);
+                }
+
+            } else {
+                for (int i=0; i < N; i++) {
+                    out.add(readValue());
+                }
+            }
+
+            return out;
+        }
+
+        return null;
+    }
+
+    /**
+     * Same as {@link #readList()}, but returns a read-only view that decodes each value the first time it is accessed.
+     * The values are only located when the view is created, so checking the size or reading a few values of a large list
+     * does not decode the rest of it. The view reads the data of this marshal, and must not be used after
+     * this marshal has been cleared, reset or recycled. With reference tracking enabled,
+     * or while data is being fed, the list is decoded right away.
+     */
+    public List<?> readListView() {
+        if (mTracking || mFeedState != FEED_NONE) {
+            return readList();
+        }
+
+        int N = readInt();
+
+        if (N >= 0) {
+            return new LazyList(readView(N));
+        }
+
+        return null;
+    }
+
+    /**
+     *
+     */
+    public void writeMap(Map data) {
+        if (data != null) {
+            Map<Object, Object> map = (Map<Object, Object>) data;
+            int N = map.size();
+            writeInt(N);
+
+            if (isParallel(N * 2)) {
+                Object[] values = new Object[N * 2];
+                int i = 0;
+
+                for (Map.Entry<Object, Object> entry : map.entrySet()) {
+                    values[i++] = entry.getKey();
+                    values[i++] = entry.getValue();
+                }
+
+                writeParallel(values);
+
+            } else {
+                int segment = -1;
+                int i = 0;
+
+                for (Map.Entry<Object, Object> entry : map.entrySet()) {
+                    if (i % SEGMENT_SIZE == 0) {
+                        segment = nextSegment(segment, N * 2);
+                    }
+
+                    writeValue(entry.getKey());
+                    writeValue(entry.getValue());
+
+                    i += 2;
+                }
+
+                endSpan(segment);
+            }
+
+        } else {
+            writeInt(-1);
+        }
+    }
+
+    /**
+     *
+     */
+    public Map<?, ?> readMap() {
+        int N = readInt();
+
+        if (N >= 0) {
+            Map<Object, Object> out = trackValue(mTrackPosition, new SwiftMap<Object, Object>());
+            Object key;
+            Object value;
+
+            if (isParallelRead(N * 2)) {
+                Object[] values = readParallel(N * 2);
+
+                for (int i=0; i < N * 2; i += 2) {
+                    out.put(values[i], values[i + 1]);
+                }
+
+            } else {
+                for (int i=0; i < N; i++) {
+                    key = readValue();
+                    value = readValue();
+
+                    out.put(key, value);
+                }
+            }
+
+            return out;
+        }
+
+        return null;
+    }
+
+    /**
+     * Same as {@link #readMap()}, but returns a read-only view that decodes each value the first time it is accessed.
+     * All keys are decoded on the first lookup, while values are only decoded when they are requested.
+     * The same restrictions as for {@link #readListView()} apply.
+     */
+    public Map<?, ?> readMapView() {
+        if (mTracking || mFeedState != FEED_NONE) {
+            return readMap();
+        }
+
+        int N = readInt();
+
+        if (N >= 0) {
+            return new LazyMap(readView(N * 2));
+        }
+
+        return null;
+    }
+
+    /**
+     * Locate the next {@code count} values for a lazy view and move past them
+     *
+     * @ignore
+     */
+    private LazyValues readView(int count) {
+        /*
+         * The view decodes its values on a separate marshal, which needs all dictionary strings
+         * defined in front of them. Those defined within the values are located by the view itself.
+         */
+        scanDefinitions(-1, mPointer);
+
+        Marshal part = createPart(mPointer, mLength);
+
+        part.mDefinitions = mDefinitions != null ? mDefinitions.clone() : null;
+        part.mDefinitionValues = mDefinitionValues != null ? mDefinitionValues.clone() : null;
+        part.mDefinitionCount = mDefinitionCount;
+        part.mDefinitionScan = Math.max(mPointer, mDefinitionScan);
+
+        LazyValues values = new LazyValues(part, count);
+
+        mPointer = part.mLength = values.locate(count);
+
+        return values;
+    }
+
+    /**
+     *
+     */
+    public void writeSet(Set data) {
+        if (data != null) {
             int N = data.size();
             writeInt(N);
 
-            for (Object value : (Set<Object>) data) {
-                writeValue(value);
+            if (isParallel(N)) {
+                writeParallel(toArray(data));
+
+            } else {
+                int segment = -1;
+                int i = 0;
+
+                for (Object value : (Set<Object>) data) {
+                    if (i++ % SEGMENT_SIZE == 0) {
+                        segment = nextSegment(segment, N);
+                    }
+
+                    writeValue(value);
+                }
+
+                endSpan(segment);
+            }
+
+        } else {
+            writeInt(-1);
+        }
+    }
+
+    /**
+     *
+     */
+    public Set<?> readSet() {
+        int N = readInt();
+
+        if (N >= 0) {
+            Set<Object> out = trackValue(mTrackPosition, new SwiftSet<Object>());
+
+            if (isParallelRead(N)) {
+                Object[] values = readParallel(N);
+
+                for (int i=0; i < N; i++) {
+                    out.add(values[i]);
+                }
+
+            } else {
+                for (int i=0; i < N; i++) {
+                    out.add(readValue());
+                }
+            }
+
+            return out;
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Encode and decode large lists, maps and sets in parallel using {@code executor}. The values are split into chunks
+     * that are encoded separately and joined in order, and the output is identical to that of sequential encoding.
+     * Collections are stored in segments, which are located by their size and decoded concurrently.
+     * The values, and any {@link MarshalExternalizer}, must allow being written and created from other threads.
+     * Streaming marshals, reference tracking and replacing existing data always use sequential encoding,
+     * and data fed in chunks or written by a streaming marshal is decoded sequentially.
+     * Pass {@code null} to disable.
+     */
+    public void setExecutor(ExecutorService executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * @ignore
+     */
+    private boolean isParallel(int count) {
+        return mExecutor != null && count >= PARALLEL_MIN_COUNT && !mTracking && mBlockSize == 0 && mPointer == mLength;
+    }
+
+    /**
+     * @ignore
+     */
+    private void writeParallel(Object[] values) {
+        /*
+         * Chunks are whole segments, so that the segments are the same as when encoded sequentially
+         */
+        int chunk = segmentsPerPart((values.length + SEGMENT_SIZE - 1) / SEGMENT_SIZE) * SEGMENT_SIZE;
+        List<Future<Marshal>> parts = new SwiftList<Future<Marshal>>();
+
+        try {
+            for (int i=0; i < values.length; i += chunk) {
+                parts.add(mExecutor.submit(new PartEncoder(values, i, Math.min(values.length, i + chunk), mExternalizer)));
+            }
+
+            for (int i=0; i < parts.size(); i++) {
+                Marshal part = await(parts.get(i));
+
+                joinPart(part);
+                part.recycle();
+            }
+
+        } finally {
+            for (int i=0; i < parts.size(); i++) {
+                parts.get(i).cancel(false);
+            }
+        }
+    }
+
+    /**
+     * @ignore
+     */
+    private static int segmentsPerPart(int segments) {
+        return Math.max(1, segments / (Runtime.getRuntime().availableProcessors() * 4));
+    }
+
+    /**
+     * Wait for a part of a parallel operation, and pass on anything that it throws
+     *
+     * @ignore
+     */
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+
+            throw new RuntimeException(cause.getMessage(), cause);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @ignore
+     */
+    private boolean isParallelRead(int count) {
+        return mExecutor != null && count >= PARALLEL_MIN_COUNT && !mTracking && mFeedState == FEED_NONE
+                && mPointer < mLength && mBuffer.get(mPointer) == WIRE_SEGMENT;
+    }
+
+    /**
+     * Decode the segments of a large collection in parallel
+     *
+     * @ignore
+     */
+    private Object[] readParallel(int count) {
+        int segments = (count + SEGMENT_SIZE - 1) / SEGMENT_SIZE;
+        int group = segmentsPerPart(segments);
+        int[] bounds = new int[((segments + group - 1) / group) + 1];
+        int pos = mPointer;
+
+        for (int i=0, N=0; i < segments; i++) {
+            if (i % group == 0) {
+                bounds[N++] = pos;
+            }
+
+            int end = pos + 5 <= mLength && mBuffer.get(pos) == WIRE_SEGMENT ? pos + 5 + mBuffer.getInt(pos + 1) : -1;
+
+            if (end < pos + 5 || end > mLength) {
+                throw new RuntimeException("The marshalled data is malformed, invalid segment at offset " + pos);
+            }
+
+            pos = end;
+        }
+
+        bounds[bounds.length - 1] = pos;
+
+        Object[] values = new Object[count];
+        List<Future<Object>> parts = new SwiftList<Future<Object>>();
+
+        try {
+            /*
+             * References can point to dictionary strings in any earlier segment,
+             * so all definitions are located first, each part scanning its own segments.
+             */
+            scanDefinitions(-1, bounds[0]);
+
+            if (mDefinitionScan < pos) {
+                for (int i=0; i < bounds.length - 1; i++) {
+                    if (bounds[i + 1] > mDefinitionScan) {
+                        parts.add(mExecutor.submit(new PartDecoder(createPart(Math.max(bounds[i], mDefinitionScan), bounds[i + 1]), null, 0, 0)));
+                    }
+                }
+
+                for (int i=0; i < parts.size(); i++) {
+                    Marshal part = (Marshal) await(parts.get(i));
+
+                    for (int x=0; x < part.mDefinitionCount; x++) {
+                        addDefinition(part.mDefinitions[x]);
+                    }
+                }
+
+                mDefinitionScan = pos;
+                parts.clear();
+            }
+
+            for (int i=0; i < bounds.length - 1; i++) {
+                Marshal part = createPart(bounds[i], bounds[i + 1]);
+                int offset = i * group * SEGMENT_SIZE;
+
+                part.mDefinitions = mDefinitions;
+                part.mDefinitionValues = mDefinitionValues != null ? mDefinitionValues.clone() : null;
+                part.mDefinitionCount = mDefinitionCount;
+                part.mDefinitionScan = bounds[i + 1];
+
+                parts.add(mExecutor.submit(new PartDecoder(part, values, offset, Math.min(count - offset, group * SEGMENT_SIZE))));
+            }
+
+            for (int i=0; i < parts.size(); i++) {
+                await(parts.get(i));
+            }
+
+        } finally {
+            for (int i=0; i < parts.size(); i++) {
+                parts.get(i).cancel(false);
+            }
+        }
+
+        mPointer = pos;
+
+        return values;
+    }
+
+    /**
+     * Create a marshal that reads a range of this marshal's data, as part of a parallel decoding
+     *
+     * @ignore
+     */
+    private Marshal createPart(int start, int end) {
+        Marshal part = new Marshal();
+
+        part.mBuffer = mBuffer.duplicate();
+        part.mPointer = start;
+        part.mLength = end;
+        part.mDefinitionScan = start;
+        part.mExternalizer = mExternalizer;
+
+        return part;
+    }
+
+    /**
+     * Remember a dictionary string or a span of a part that is being encoded in parallel
+     *
+     * @ignore
+     */
+    private void mark(int pos, String value) {
+        if (mMarks == null) {
+            mMarks = new int[INITIAL_CAPACITY];
+            mMarkedStrings = new String[INITIAL_CAPACITY];
+
+        } else if (mMarkCount == mMarks.length) {
+            int[] marks = new int[(int) (mMarkCount * BUFFER_RESIZE) + 1];
+            String[] strings = new String[marks.length];
+
+            System.arraycopy(mMarks, 0, marks, 0, mMarkCount);
+            System.arraycopy(mMarkedStrings, 0, strings, 0, mMarkCount);
+
+            mMarks = marks;
+            mMarkedStrings = strings;
+        }
+
+        mMarks[mMarkCount] = pos;
+        mMarkedStrings[mMarkCount++] = value;
+    }
+
+    /**
+     * Append a part that was encoded in parallel. The data between marks is copied as is,
+     * while dictionary strings are written again in order, and spans are sized again to match.
+     *
+     * @ignore
+     */
+    private void joinPart(Marshal part) {
+        byte[] source = part.mBuffer != null ? part.mBuffer.array() : null;
+        int[] spans = new int[16];
+        int spanCount = 0;
+        int run = 0;
+
+        for (int i=0; i <= part.mMarkCount; i++) {
+            int pos = i < part.mMarkCount ? part.mMarks[i] : part.mLength;
+
+            while (spanCount > 0 && spans[spanCount - 1] <= pos) {
+                int end = spans[spanCount - 1];
+
+                run = copyPart(source, run, end);
+                endSpan(spans[spanCount - 2]);
+                spanCount -= 2;
+            }
+
+            run = copyPart(source, run, pos);
+
+            if (i < part.mMarkCount) {
+                String value = part.mMarkedStrings[i];
+
+                if (value != null) {
+                    writeString(value);
+                    run = pos + 1;
+
+                } else {
+                    if (spanCount == spans.length) {
+                        int[] array = new int[spanCount * 2];
+                        System.arraycopy(spans, 0, array, 0, spanCount);
+                        spans = array;
+                    }
+
+                    spans[spanCount++] = writeSpan(part.mBuffer.get(pos), 0);
+                    spans[spanCount++] = pos + 5 + part.mBuffer.getInt(pos + 1);
+                    run = pos + 5;
+                }
+            }
+        }
+    }
+
+    /**
+     * @ignore
+     */
+    private int copyPart(byte[] source, int start, int end) {
+        if (end > start) {
+            int pos = reserve(end - start);
+            System.arraycopy(source, start, mBuffer.array(), pos, end - start);
+        }
+
+        return end;
+    }
+
+
+    /**
+     * Use a typed encoding for lists, sets and maps that only contain values of one simple type.
+     * The type is written once, followed by the values as a packed array or as a run of strings.
+     *
+     * @ignore
+     */
+    private int typedOf(int type, Object data) {
+        if (type == TYPE_MAP) {
+            Map<?, ?> map = (Map<?, ?>) data;
+
+            return map.size() >= TYPED_MIN_COUNT && elementType(map.keySet()) != TYPE_NULL && elementType(map.values()) != TYPE_NULL ? TYPE_TYPEDMAP : type;
+        }
+
+        Collection<?> collection = (Collection<?>) data;
+
+        if (collection.size() >= TYPED_MIN_COUNT && elementType(collection) != TYPE_NULL) {
+            return type == TYPE_LIST ? TYPE_TYPEDLIST : TYPE_TYPEDSET;
+        }
+
+        return type;
+    }
+
+    /**
+     * Find the type shared by all values, if they are all of the same simple type
+     *
+     * @return
+     *      The type or {@link #TYPE_NULL} if the values cannot use a typed encoding
+     *
+     * @ignore
+     */
+    private static int elementType(Collection<?> values) {
+        Iterator<?> iterator = values.iterator();
+        Object first = iterator.hasNext() ? iterator.next() : null;
+
+        if (first == null) {
+            return TYPE_NULL;
+        }
+
+        Class<?> clazz = first.getClass();
+        int type = findDispatch(clazz).mType;
+
+        switch (type) {
+            case TYPE_STRING:
+            case TYPE_INTEGER:
+            case TYPE_LONG:
+            case TYPE_DOUBLE:
+            case TYPE_FLOAT:
+            case TYPE_BYTE:
+            case TYPE_CHAR:
+                while (iterator.hasNext()) {
+                    Object value = iterator.next();
+
+                    if (value == null || value.getClass() != clazz) {
+                        return TYPE_NULL;
+                    }
+                }
+
+                return type;
+        }
+
+        return TYPE_NULL;
+    }
+
+    /**
+     * Copy the values of a collection. Not all collections, like the views of a {@link SwiftMap}, support {@link Collection#toArray()}.
+     *
+     * @ignore
+     */
+    private static Object[] toArray(Collection<?> values) {
+        Object[] array = new Object[values.size()];
+        int i = 0;
+
+        for (Object value : values) {
+            array[i++] = value;
+        }
+
+        return array;
+    }
+
+    /**
+     * @ignore
+     */
+    private void writeTyped(int type, Object[] values) {
+        int N = values.length;
+
+        writeInt(type);
+
+        switch (type) {
+            case TYPE_STRING:
+                writeInt(N);
+
+                for (int i=0; i < N; i++) {
+                    writeString((String) values[i]);
+                }
+
+                break;
+
+            case TYPE_INTEGER:
+                int[] ints = new int[N];
+
+                for (int i=0; i < N; i++) {
+                    ints[i] = (Integer) values[i];
+                }
+
+                writeIntArray(ints); break;
+
+            case TYPE_LONG:
+                long[] longs = new long[N];
+
+                for (int i=0; i < N; i++) {
+                    longs[i] = (Long) values[i];
+                }
+
+                writeLongArray(longs); break;
+
+            case TYPE_DOUBLE:
+                double[] doubles = new double[N];
+
+                for (int i=0; i < N; i++) {
+                    doubles[i] = (Double) values[i];
+                }
+
+                writeDoubleArray(doubles); break;
+
+            case TYPE_FLOAT:
+                float[] floats = new float[N];
+
+                for (int i=0; i < N; i++) {
+                    floats[i] = (Float) values[i];
+                }
+
+                writeFloatArray(floats); break;
+
+            case TYPE_BYTE:
+                byte[] bytes = new byte[N];
+
+                for (int i=0; i < N; i++) {
+                    bytes[i] = (Byte) values[i];
+                }
+
+                writeByteArray(bytes); break;
+
+            case TYPE_CHAR:
+                char[] chars = new char[N];
+
+                for (int i=0; i < N; i++) {
+                    chars[i] = (Character) values[i];
+                }
+
+                writeCharArray(chars);
+        }
+    }
+
+    /**
+     * @ignore
+     */
+    private Object[] readTyped() {
+        int type = readInt();
+        Object[] out;
+        int N;
+
+        switch (type) {
+            case TYPE_STRING:
+                out = new Object[N = readInt()];
+
+                for (int i=0; i < N; i++) {
+                    out[i] = readString();
+                }
+
+                return out;
+
+            case TYPE_INTEGER:
+                int[] ints = readIntArray();
+                out = new Object[N = ints.length];
+
+                for (int i=0; i < N; i++) {
+                    out[i] = ints[i];
+                }
+
+                return out;
+
+            case TYPE_LONG:
+                long[] longs = readLongArray();
+                out = new Object[N = longs.length];
+
+                for (int i=0; i < N; i++) {
+                    out[i] = longs[i];
+                }
+
+                return out;
+
+            case TYPE_DOUBLE:
+                double[] doubles = readDoubleArray();
+                out = new Object[N = doubles.length];
+
+                for (int i=0; i < N; i++) {
+                    out[i] = doubles[i];
+                }
+
+                return out;
+
+            case TYPE_FLOAT:
+                float[] floats = readFloatArray();
+                out = new Object[N = floats.length];
+
+                for (int i=0; i < N; i++) {
+                    out[i] = floats[i];
+                }
+
+                return out;
+
+            case TYPE_BYTE:
+                byte[] bytes = readByteArray();
+                out = new Object[N = bytes.length];
+
+                for (int i=0; i < N; i++) {
+                    out[i] = bytes[i];
+                }
+
+                return out;
+
+            case TYPE_CHAR:
+                char[] chars = readCharArray();
+                out = new Object[N = chars.length];
+
+                for (int i=0; i < N; i++) {
+                    out[i] = chars[i];
+                }
+
+                return out;
+
+            default:
+                throw new RuntimeException("The marshalled data is malformed, unknown collection type '" + type + "'");
+        }
+    }
+
+
+    /* =============================================================
+     * -------------------------------------------------------------
+     * AUTOMATIC
+     */
+
+    /**
+     *
+     */
+    public Object readValue() {
+        if (peekType() == WIRE_SEGMENT) {
+            mPointer += 5;
+        }
+
+        if (peekType() == WIRE_BACKREF) {
+            return readReference();
+        }
+
+        int position = mPointer;
+        int type = readInt();
+        Object value;
+
+        mTrackPosition = mTracking && isShared(type) && type != TYPE_MARSHALABLE ? position : -1;
+
+        if (mPointer < mLength && mBuffer.get(mPointer) == WIRE_SPAN) {
+            mPointer += 5;
+        }
+
+        switch (type) {
+            case TYPE_NULL:
+                return null;
+
+            case TYPE_MARSHALABLE:
+                return readMarshalable();
+
+            case TYPE_MARSHALABLEARRAY:
+                position = beginValue();
+
+                return trackValue(position, readMarshalableArray());
+
+            case TYPE_STRING:
+                return readString();
+
+            case TYPE_STRINGARRAY:
+                return readStringArray();
+
+            case TYPE_INTEGER:
+                return readInt();
+
+            case TYPE_INTEGERARRAY:
+                return readIntArray();
+
+            case TYPE_LONG:
+                return readLong();
+
+            case TYPE_LONGARRAY:
+                return readLongArray();
+
+            case TYPE_DOUBLE:
+                return readDouble();
+
+            case TYPE_DOUBLEARRAY:
+                return readDoubleArray();
+
+            case TYPE_FLOAT:
+                return readFloat();
+
+            case TYPE_FLOATARRAY:
+                return readFloatArray();
+
+            case TYPE_BOOLEAN:
+                return readInt() > 0;
+
+            case TYPE_BOOLEANARRAY:
+                int size = readInt();
+                boolean[] ret = new boolean[size];
+
+                for (int i=0; i < size; i++) {
+                    ret[i] = readInt() > 0;
+                }
+
+                return ret;
+
+            case TYPE_BYTE:
+                return readByte();
+
+            case TYPE_BYTEARRAY:
+                return readByteArray();
+
+            case TYPE_CHAR:
+                return readChar();
+
+            case TYPE_CHARARRAY:
+                return readCharArray();
+
+            case TYPE_OBJECTARRAY:
+                return readArray();
+
+            case TYPE_LIST:
+                return readList();
+
+            case TYPE_MAP:
+                return readMap();
+
+            case TYPE_SET:
+                return readSet();
+
+            case TYPE_TYPEDLIST:
+            case TYPE_TYPEDSET:
+                position = mTrackPosition;
+
+                Object[] values = readTyped();
+                Collection<Object> collection = type == TYPE_TYPEDLIST ? new SwiftList<Object>() : new SwiftSet<Object>();
+
+                for (int i=0; i < values.length; i++) {
+                    collection.add(values[i]);
+                }
+
+                return trackValue(position, collection);
+
+            case TYPE_TYPEDMAP:
+                position = mTrackPosition;
+
+                Object[] keys = readTyped();
+                Object[] entries = readTyped();
+                Map<Object, Object> map = new SwiftMap<Object, Object>();
+
+                if (keys.length != entries.length) {
+                    throw new RuntimeException("The marshalled data is malformed, a map has " + keys.length + " keys but " + entries.length + " values");
+                }
+
+                for (int i=0; i < keys.length; i++) {
+                    map.put(keys[i], entries[i]);
+                }
+
+                return trackValue(position, map);
+
+            case TYPE_SERIALIZEABLE:
+                position = beginValue();
+
+                return trackValue(position, readSerializable());
+
+            case TYPE_SERIALIZEABLEARRAY:
+                position = beginValue();
+
+                return trackValue(position, readSerializableArray());
+
+            case TYPE_ADAPTER:
+                require(WIRE_BEGIN);
+
+                String name = readString();
+                MarshalAdapter<?> adapter = ADAPTERS.get(name);
+
+                position = beginValue();
+
+                if (adapter == null) {
+                    throw new RuntimeException("No adapter has been registered for the marshalled type '" + name + "'");
+                }
+
+                value = adapter.readFromMarshal(this);
+
+                skipFrame();
+
+                return trackValue(position, value);
+
+            default:
+                return null;
+        }
+    }
+
+    /**
+     *
+     */
+    @SuppressWarnings("unchecked")
+    public void writeValue(Object data) {
+        Dispatch dispatch = data != null ? findDispatch(data.getClass()) : null;
+        int type = dispatch != null ? dispatch.mType : TYPE_NULL;
+
+        if (type == TYPE_LIST || type == TYPE_SET || type == TYPE_MAP) {
+            type = typedOf(type, data);
+        }
+
+        /*
+         * Marshalable values are tracked by writeMarshalable, after the type
+         */
+        if (type != TYPE_MARSHALABLE && isShared(type) && writeReference(data, false)) {
+            return;
+        }
+
+        writeInt(type);
+
+        int span = beginSpan(countOf(type, data));
+
+        switch (type) {
+            case TYPE_MARSHALABLE:
+                writeMarshalable((Marshalable) data); break;
+
+            case TYPE_MARSHALABLEARRAY:
+                writeMarshalableArray((Marshalable[]) data); break;
+
+            case TYPE_STRING:
+                writeString((String) data); break;
+
+            case TYPE_STRINGARRAY:
+                writeStringArray((String[]) data); break;
+
+            case TYPE_INTEGER:
+                writeInt((Integer) data); break;
+
+            case TYPE_INTEGERARRAY:
+                writeIntArray((int[]) data); break;
+
+            case TYPE_LONG:
+                writeLong((Long) data); break;
+
+            case TYPE_LONGARRAY:
+                writeLongArray((long[]) data); break;
+
+            case TYPE_DOUBLE:
+                writeDouble((Double) data); break;
+
+            case TYPE_DOUBLEARRAY:
+                writeDoubleArray((double[]) data); break;
+
+            case TYPE_FLOAT:
+                writeFloat((Float) data); break;
+
+            case TYPE_FLOATARRAY:
+                writeFloatArray((float[]) data); break;
+
+            case TYPE_BOOLEAN:
+                writeInt(((Boolean) data) ? 1 : 0); break;
+
+            case TYPE_BOOLEANARRAY:
+                boolean[] arr = (boolean[]) data;
+
+                writeInt(arr.length);
+
+                for (int i=0; i < arr.length; i++) {
+                    writeInt(arr[i] ? 1 : 0);
+                }
+
+                break;
+
+            case TYPE_BYTE:
+                writeByte((Byte) data); break;
+
+            case TYPE_BYTEARRAY:
+                writeByteArray((byte[]) data); break;
+
+            case TYPE_CHAR:
+                writeChar((Character) data); break;
+
+            case TYPE_CHARARRAY:
+                writeCharArray((char[]) data); break;
+
+            case TYPE_LIST:
+                writeList((List<?>) data); break;
+
+            case TYPE_MAP:
+                writeMap((Map<?,?>) data); break;
+
+            case TYPE_SET:
+                writeSet((Set<?>) data); break;
+
+            case TYPE_TYPEDLIST:
+            case TYPE_TYPEDSET:
+                Collection<?> collection = (Collection<?>) data;
+
+                writeTyped(elementType(collection), toArray(collection));
+
+                break;
+
+            case TYPE_TYPEDMAP:
+                Map<?, ?> map = (Map<?, ?>) data;
+                Object[] keys = new Object[map.size()];
+                Object[] values = new Object[keys.length];
+                int i = 0;
+
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    keys[i] = entry.getKey();
+                    values[i++] = entry.getValue();
+                }
+
+                writeTyped(elementType(map.keySet()), keys);
+                writeTyped(elementType(map.values()), values);
+
+                break;
+
+            case TYPE_SERIALIZEABLE:
+                writeSerializable((Serializable) data); break;
+
+            case TYPE_SERIALIZEABLEARRAY:
+                writeSerializableArray((Serializable[]) data); break;
+
+            case TYPE_OBJECTARRAY:
+                writeArray((Object[]) data); break;
+
+            case TYPE_ADAPTER:
+                writeMarker(WIRE_BEGIN);
+                writeString(dispatch.mName);
+
+                ((MarshalAdapter<Object>) dispatch.mAdapter).writeToMarshal(this, data);
+
+                writeMarker(WIRE_END);
+        }
+
+        endSpan(span);
+    }
+
+    /**
+     * Write objects that appear more than once, as values or {@link Marshalable} types, only once
+     * and refer back to the first copy afterwards. This also allows collections to contain themselves.
+     * Data containing shared values can only be read with tracking enabled.
+     */
+    public void setReferenceTracking(boolean enabled) {
+        mTracking = enabled;
+        mWritten = null;
+        mRead = null;
+    }
+
+    /**
+     * @ignore
+     */
+    private static boolean isShared(int type) {
+        switch (type) {
+            case TYPE_MARSHALABLE:
+            case TYPE_MARSHALABLEARRAY:
+            case TYPE_OBJECTARRAY:
+            case TYPE_LIST:
+            case TYPE_MAP:
+            case TYPE_SET:
+            case TYPE_TYPEDLIST:
+            case TYPE_TYPEDMAP:
+            case TYPE_TYPEDSET:
+            case TYPE_SERIALIZEABLE:
+            case TYPE_SERIALIZEABLEARRAY:
+            case TYPE_ADAPTER:
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Write a reference if the object has been written before, otherwise remember where it starts.
+     * References are stored as the distance back to the first copy, and are only used while appending.
+     *
+     * @return
+     *      {@code true} if a reference was written
+     *
+     * @ignore
+     */
+    private boolean writeReference(Object data, boolean pending) {
+        if (!mTracking || mPointer != mLength) {
+            return false;
+        }
+
+        int position = mFlushed + mPointer;
+
+        if (mWritten == null) {
+            mWritten = new IdentityHashMap<Object, Integer>();
+        }
+
+        Integer target = mWritten.get(data);
+
+        if (target == null) {
+            mWritten.put(data, pending ? ~position : position);
+
+            return false;
+
+        } else if (target < 0) {
+            throw new RuntimeException("The Marshalable '" + data.getClass().getName() + "' refers to itself, cyclic Marshalable types cannot be restored");
+        }
+
+        int distance = position - target;
+        int pos = reserve(1 + sizeOfVarInt(distance));
+
+        mBuffer.put(pos, WIRE_BACKREF);
+        putVarInt(pos + 1, distance);
+        mShared = true;
+
+        return true;
+    }
+
+    /**
+     * @ignore
+     */
+    private Object readReference() {
+        int pos = require(WIRE_BACKREF);
+        int target = pos - readVarInt();
+
+        if (!mTracking) {
+            throw new RuntimeException("The marshalled data contains shared values at offset " + pos + ", reference tracking must be enabled to read it");
+
+        } else if (target < 0 || target >= pos) {
+            throw new RuntimeException("The marshalled data is malformed, invalid reference at offset " + pos);
+        }
+
+        Object value = mRead != null ? mRead.get(target) : null;
+
+        if (value == IN_PROGRESS) {
+            throw new RuntimeException("The marshalled data contains a value at offset " + target + " that refers to itself, such cyclic values cannot be restored");
+
+        } else if (value == null) {
+            /*
+             * The first copy has not been read yet, like when the offset was moved past it
+             */
+            int pointer = mPointer;
+
+            mPointer = target;
+            value = mBuffer.get(target) == WIRE_BEGIN ? readMarshalable() : readValue();
+            mPointer = pointer;
+        }
+
+        return value;
+    }
+
+    /**
+     * Mark the tracked value being read as in progress, for values that are only available once their content
+     * has been decoded. A reference to it from within its own content is then refused instead of reading it again.
+     *
+     * @return
+     *      The position to pass to {@link #trackValue(int, Object)} once the value has been decoded
+     *
+     * @ignore
+     */
+    private int beginValue() {
+        int position = mTrackPosition;
+
+        trackValue(position, IN_PROGRESS);
+
+        return position;
+    }
+
+    /**
+     * @ignore
+     */
+    private <T> T trackValue(int position, T value) {
+        if (position >= 0 && value != null) {
+            if (mRead == null) {
+                mRead = new HashMap<Integer, Object>();
+            }
+
+            mRead.put(position, value);
+
+        } else if (position >= 0 && mRead != null) {
+            mRead.remove(position);
+        }
+
+        mTrackPosition = -1;
+
+        return value;
+    }
+
+    /**
+     * Mark the current offset as the start of a record. The offsets of all records are written
+     * as an index at the end of the binary output, which allows a reader to jump to any record
+     * using {@link #seekRecord(int)} without decoding the data in front of it.
+     * On a streaming marshal, the first record must be marked before anything has been written
+     * to the output, and the marshal must be ended using {@link #finish()}.
+     */
+    public void markRecord() {
+        if (!mIndexed && mHeaderWritten) {
+            throw new RuntimeException("Records in a streaming marshal must be marked before output has been written");
+
+        } else if (mRecords == null) {
+            mRecords = new int[16];
+
+        } else if (mRecordCount == mRecords.length) {
+            int[] records = new int[mRecordCount * 2];
+            System.arraycopy(mRecords, 0, records, 0, mRecordCount);
+            mRecords = records;
+        }
+
+        mRecords[mRecordCount++] = mFlushed + mPointer;
+        mIndexed = true;
+    }
+
+    /**
+     * Returns the number of records in the index, or {@code 0} if the data has no index
+     */
+    public int getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * Move the pointer to the start of a record marked by {@link #markRecord()}
+     */
+    public void seekRecord(int record) {
+        checkBuffered();
+
+        if (record < 0 || record >= mRecordCount) {
+            throw new RuntimeException("Record '" + record + "' is out of range, the index contains " + mRecordCount + " records");
+
+        } else if (mRecords[record] < 0 || mRecords[record] > mLength) {
+            throw new RuntimeException("The marshalled data is malformed, record '" + record + "' is out of parcel range");
+        }
+
+        mPointer = mRecords[record];
+    }
+
+    /**
+     * Compress the binary output of {@link #toStream(OutputStream)} or of a streaming marshal.
+     * On a streaming marshal this must be set before anything has been written to the output.
+     * Pass {@code null} to disable compression.
+     */
+    public void setCompressor(MarshalCompressor compressor) {
+        if (mHeaderWritten) {
+            throw new RuntimeException("The compression of a streaming marshal cannot be changed once output has been written");
+        }
+
+        mCompressor = compressor;
+    }
+
+    /**
+     * Register a custom compressor, so that data compressed by it can be read
+     */
+    public static void registerCompressor(MarshalCompressor compressor) {
+        COMPRESSORS.put(compressor.getId(), compressor);
+    }
+
+    /**
+     * @ignore
+     */
+    private static MarshalCompressor findCompressor(int id) {
+        MarshalCompressor compressor = id == DEFLATE.getId() ? DEFLATE : COMPRESSORS.get(id);
+
+        if (compressor == null) {
+            throw new RuntimeException("The marshalled data is compressed by an unknown compressor '" + id + "'");
+        }
+
+        return compressor;
+    }
+
+    /**
+     * Register an adapter used by {@link #writeValue(Object)} and {@link #readValue()}
+     * for a type and its subclasses. The type may be an interface, which matches every class implementing it.
+     * Adapters take precedence over the built-in types, and those of a class over those of its interfaces.
+     */
+    public static synchronized <T> void registerAdapter(Class<T> clazz, MarshalAdapter<T> adapter) {
+        ADAPTERS.put(clazz.getName(), adapter);
+
+        /*
+         * Lookups that started before this are not cached, as they may have missed the new adapter
+         */
+        sDispatchGeneration++;
+        DISPATCH.clear();
+    }
+
+    /**
+     * Find how values of a class are written. The result is cached per class, so that only
+     * the first value of each class has to go through the type checks.
+     *
+     * @ignore
+     */
+    private static Dispatch findDispatch(Class<?> clazz) {
+        Dispatch dispatch = DISPATCH.get(clazz);
+
+        if (dispatch == null) {
+            int generation = sDispatchGeneration;
+
+            for (Class<?> parent = clazz; parent != null && dispatch == null; parent = parent.getSuperclass()) {
+                dispatch = findAdapter(parent);
+            }
+
+            if (dispatch == null) {
+                dispatch = new Dispatch(typeOf(clazz), null, null);
+            }
+
+            DISPATCH.put(clazz, dispatch);
+
+            if (generation != sDispatchGeneration) {
+                DISPATCH.remove(clazz, dispatch);
+            }
+        }
+
+        return dispatch;
+    }
+
+    /**
+     * Find an adapter registered for a class or any of the interfaces it implements
+     *
+     * @ignore
+     */
+    private static Dispatch findAdapter(Class<?> clazz) {
+        MarshalAdapter<?> adapter = ADAPTERS.get(clazz.getName());
+
+        if (adapter != null) {
+            return new Dispatch(TYPE_ADAPTER, clazz.getName(), adapter);
+        }
+
+        for (Class<?> type : clazz.getInterfaces()) {
+            Dispatch dispatch = findAdapter(type);
+
+            if (dispatch != null) {
+                return dispatch;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @ignore
+     */
+    private static int typeOf(Class<?> clazz) {
+        if (Marshalable.class.isAssignableFrom(clazz)) {
+            return TYPE_MARSHALABLE;
+
+        } else if (Marshalable[].class.isAssignableFrom(clazz)) {
+            return TYPE_MARSHALABLEARRAY;
+
+        } else if (clazz == String.class) {
+            return TYPE_STRING;
+
+        } else if (clazz == String[].class) {
+            return TYPE_STRINGARRAY;
+
+        } else if (clazz == Integer.class) {
+            return TYPE_INTEGER;
+
+        } else if (clazz == int[].class) {
+            return TYPE_INTEGERARRAY;
+
+        } else if (clazz == Long.class) {
+            return TYPE_LONG;
+
+        } else if (clazz == long[].class) {
+            return TYPE_LONGARRAY;
+
+        } else if (clazz == Double.class) {
+            return TYPE_DOUBLE;
+
+        } else if (clazz == double[].class) {
+            return TYPE_DOUBLEARRAY;
+
+        } else if (clazz == Float.class) {
+            return TYPE_FLOAT;
+
+        } else if (clazz == float[].class) {
+            return TYPE_FLOATARRAY;
+
+        } else if (clazz == Boolean.class) {
+            return TYPE_BOOLEAN;
+
+        } else if (clazz == boolean[].class) {
+            return TYPE_BOOLEANARRAY;
+
+        } else if (clazz == Byte.class) {
+            return TYPE_BYTE;
+
+        } else if (clazz == byte[].class) {
+            return TYPE_BYTEARRAY;
+
+        } else if (clazz == Character.class) {
+            return TYPE_CHAR;
+
+        } else if (clazz == char[].class) {
+            return TYPE_CHARARRAY;
+
+        } else if (List.class.isAssignableFrom(clazz)) {
+            return TYPE_LIST;
+
+        } else if (Map.class.isAssignableFrom(clazz)) {
+            return TYPE_MAP;
+
+        } else if (Set.class.isAssignableFrom(clazz)) {
+            return TYPE_SET;
+
+        } else if (Serializable.class.isAssignableFrom(clazz)) {
+            return TYPE_SERIALIZEABLE;
+
+        } else if (Serializable[].class.isAssignableFrom(clazz)) {
+            return TYPE_SERIALIZEABLEARRAY;
+
+        } else if (clazz.isArray() && clazz.getComponentType() == Object.class) {
+            return TYPE_OBJECTARRAY;
+        }
+
+        return TYPE_NULL;
+    }
+
+    /**
+     * @ignore
+     */
+    private static final class Dispatch {
+
+        /** @ignore */
+        public final int mType;
+
+        /** @ignore */
+        public final String mName;
+
+        /** @ignore */
+        public final MarshalAdapter<?> mAdapter;
+
+        /**
+         *
+         */
+        public Dispatch(int type, String name, MarshalAdapter<?> adapter) {
+            mType = type;
+            mName = name;
+            mAdapter = adapter;
+        }
+    }
+
+    /**
+     * Restores a {@link Marshalable} using its {@code Marshal} constructor
+     *
+     * @ignore
+     */
+    private static final class ConstructorCreator implements Marshalable.Creator<Marshalable> {
+
+        /** @ignore */
+        private final Constructor<? extends Marshalable> mConstructor;
+
+        /**
+         *
+         */
+        public ConstructorCreator(Constructor<? extends Marshalable> constructor) {
+            mConstructor = constructor;
+        }
+
+        /**
+         *
+         */
+        @Override
+        public Marshalable createFromMarshal(Marshal source) {
+            try {
+                return mConstructor.newInstance(source);
+
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+
+                throw new RuntimeException(cause.getMessage(), cause);
+
+            } catch (Exception e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * @ignore
+     */
+    private static final class DeflateCompressor implements MarshalCompressor {
+
+        /** @ignore */
+        private final int mLevel;
+
+        /**
+         *
+         */
+        public DeflateCompressor(int level) {
+            mLevel = level;
+        }
+
+        /**
+         *
+         */
+        @Override
+        public int getId() {
+            return 1;
+        }
+
+        /**
+         *
+         */
+        @Override
+        public void compress(byte[] input, int offset, int length, OutputStream output) throws IOException {
+            Deflater deflater = new Deflater(mLevel);
+            byte[] buffer = new byte[BINARY_BUFFER_SIZE];
+
+            try {
+                deflater.setInput(input, offset, length);
+                deflater.finish();
+
+                while (!deflater.finished()) {
+                    output.write(buffer, 0, deflater.deflate(buffer));
+                }
+
+            } finally {
+                deflater.end();
+            }
+        }
+
+        /**
+         *
+         */
+        @Override
+        public void decompress(byte[] input, int offset, int length, byte[] output, int outputOffset, int outputLength) throws IOException {
+            Inflater inflater = new Inflater();
+
+            try {
+                inflater.setInput(input, offset, length);
+
+                for (int count = 0; count < outputLength; ) {
+                    int inflated = inflater.inflate(output, outputOffset + count, outputLength - count);
+
+                    if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+                        throw new IOException("The compressed block is shorter than expected");
+                    }
+
+                    count += inflated;
+                }
+
+            } catch (DataFormatException e) {
+                throw new IOException(e.getMessage());
+
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+
+    /**
+     * Encodes a chunk of values into a separate marshal, as part of a parallel encoding
+     *
+     * @ignore
+     */
+    private static final class PartEncoder implements Callable<Marshal> {
+
+        /** @ignore */
+        private final Object[] mValues;
+
+        /** @ignore */
+        private final int mStart;
+
+        /** @ignore */
+        private final int mEnd;
+
+        /** @ignore */
+        private final MarshalExternalizer mExternalizer;
+
+        /**
+         *
+         */
+        public PartEncoder(Object[] values, int start, int end, MarshalExternalizer externalizer) {
+            mValues = values;
+            mStart = start;
+            mEnd = end;
+            mExternalizer = externalizer;
+        }
+
+        /**
+         *
+         */
+        @Override
+        public Marshal call() {
+            Marshal part = obtain();
+
+            int segment = -1;
+
+            part.mExternalizer = mExternalizer;
+            part.mDeferred = true;
+
+            for (int i=mStart; i < mEnd; i++) {
+                if (i % SEGMENT_SIZE == 0) {
+                    part.endSpan(segment);
+                    segment = part.writeSpan(WIRE_SEGMENT, 0);
+                }
+
+                part.writeValue(mValues[i]);
+            }
+
+            part.endSpan(segment);
+
+            return part;
+        }
+    }
+
+    /**
+     * Decodes a range of values from a separate marshal, as part of a parallel decoding.
+     * Without an output array, it only locates the dictionary strings within the range.
+     *
+     * @ignore
+     */
+    private static final class PartDecoder implements Callable<Object> {
+
+        /** @ignore */
+        private final Marshal mPart;
+
+        /** @ignore */
+        private final Object[] mValues;
+
+        /** @ignore */
+        private final int mOffset;
+
+        /** @ignore */
+        private final int mCount;
+
+        /**
+         *
+         */
+        public PartDecoder(Marshal part, Object[] values, int offset, int count) {
+            mPart = part;
+            mValues = values;
+            mOffset = offset;
+            mCount = count;
+        }
+
+        /**
+         *
+         */
+        @Override
+        public Object call() {
+            if (mValues == null) {
+                mPart.scanDefinitions(-1, mPart.mLength);
+
+            } else {
+                for (int i=0; i < mCount; i++) {
+                    mValues[mOffset + i] = mPart.readValue();
+                }
+            }
+
+            return mPart;
+        }
+    }
+
+    /**
+     * Decodes the values of a collection on first access, for the views returned by
+     * {@link #readListView()} and {@link #readMapView()}. The offset of each value is found by skipping
+     * the values in front of it, jumping past whole segments where the collection has them.
+     *
+     * @ignore
+     */
+    private static final class LazyValues {
+
+        /** @ignore */
+        private static final Object UNDECODED = new Object();
+
+        /** @ignore */
+        private final Marshal mPart;
+
+        /** @ignore */
+        private final Object[] mValues;
+
+        /** @ignore */
+        private final int[] mOffsets;
+
+        /** @ignore */
+        private int mSegment = 0;
+
+        /**
+         *
+         */
+        public LazyValues(Marshal part, int count) {
+            mPart = part;
+            mValues = new Object[count];
+            mOffsets = new int[count + 1];
+            mOffsets[0] = part.mPointer;
+
+            for (int i=0; i < count; i++) {
+                mValues[i] = UNDECODED;
+            }
+        }
+
+        /**
+         *
+         */
+        public int size() {
+            return mValues.length;
+        }
+
+        /**
+         *
+         */
+        public Object get(int index) {
+            Object value = mValues[index];
+
+            if (value == UNDECODED) {
+                mPart.mPointer = locate(index);
+                value = mValues[index] = mPart.readValue();
+                mOffsets[index + 1] = mPart.mPointer;
+            }
+
+            return value;
+        }
+
+        /**
+         * Find the offset of a value, or the end of the values when {@code index} equals the size
+         */
+        public int locate(int index) {
+            int i = index;
+
+            /*
+             * Offsets of 0 are unknown, as the values are always preceded by their count
+             */
+            while (mOffsets[i] == 0 && i % SEGMENT_SIZE != 0) {
+                i--;
+            }
+
+            for (; mOffsets[i] == 0; mSegment += SEGMENT_SIZE) {
+                if (mOffsets[mSegment + SEGMENT_SIZE] == 0) {
+                    mOffsets[mSegment + SEGMENT_SIZE] = skipSegment(mOffsets[mSegment]);
+                }
+            }
+
+            for (; i < index; i++) {
+                mPart.mPointer = mOffsets[i];
+                mPart.skipValue();
+                mOffsets[i + 1] = mPart.mPointer;
+            }
+
+            return mOffsets[index];
+        }
+
+        /**
+         * @ignore
+         */
+        private int skipSegment(int pos) {
+            ByteBuffer buffer = mPart.mBuffer;
+
+            if (pos + 5 <= mPart.mLength && buffer.get(pos) == WIRE_SEGMENT) {
+                int end = pos + 5 + buffer.getInt(pos + 1);
+
+                if (end < pos + 5 || end > mPart.mLength) {
+                    throw new RuntimeException("The marshalled data is malformed, invalid segment at offset " + pos);
+                }
+
+                return end;
+            }
+
+            mPart.mPointer = pos;
+
+            for (int i=0; i < SEGMENT_SIZE; i++) {
+                mPart.skipValue();
+            }
+
+            return mPart.mPointer;
+        }
+    }
+
+    /**
+     * A read-only list that decodes its values on first access
+     *
+     * @ignore
+     */
+    private static final class LazyList extends AbstractList<Object> implements RandomAccess {
+
+        /** @ignore */
+        private final LazyValues mValues;
+
+        /**
+         *
+         */
+        public LazyList(LazyValues values) {
+            mValues = values;
+        }
+
+        /**
+         *
+         */
+        @Override
+        public Object get(int index) {
+            if (index < 0 || index >= mValues.size()) {
+                throw new IndexOutOfBoundsException("Index " + index + " is out of bounds for a list of size " + mValues.size());
+            }
+
+            return mValues.get(index);
+        }
+
+        /**
+         *
+         */
+        @Override
+        public int size() {
+            return mValues.size();
+        }
+    }
+
+    /**
+     * A read-only map that decodes its keys on the first lookup and its values on first access.
+     * Keys and values are stored in turn, like they are written.
+     *
+     * @ignore
+     */
+    private static final class LazyMap extends AbstractMap<Object, Object> {
+
+        /** @ignore */
+        private final LazyValues mValues;
+
+        /** @ignore */
+        private Map<Object, Integer> mIndex = null;
+
+        /** @ignore */
+        private Set<Map.Entry<Object, Object>> mEntries = null;
+
+        /**
+         *
+         */
+        public LazyMap(LazyValues values) {
+            mValues = values;
+        }
+
+        /**
+         * @ignore
+         */
+        private Map<Object, Integer> index() {
+            if (mIndex == null) {
+                mIndex = new HashMap<Object, Integer>();
+
+                for (int i=0; i < mValues.size(); i += 2) {
+                    mIndex.put(mValues.get(i), i);
+                }
+            }
+
+            return mIndex;
+        }
+
+        /**
+         *
+         */
+        @Override
+        public int size() {
+            return mValues.size() / 2;
+        }
+
+        /**
+         *
+         */
+        @Override
+        public boolean containsKey(Object key) {
+            return index().containsKey(key);
+        }
+
+        /**
+         *
+         */
+        @Override
+        public Object get(Object key) {
+            Integer i = index().get(key);
+
+            return i != null ? mValues.get(i + 1) : null;
+        }
+
+        /**
+         *
+         */
+        @Override
+        public Set<Map.Entry<Object, Object>> entrySet() {
+            if (mEntries == null) {
+                mEntries = new AbstractSet<Map.Entry<Object, Object>>() {
+
+                    @Override
+                    public Iterator<Map.Entry<Object, Object>> iterator() {
+                        return new Iterator<Map.Entry<Object, Object>>() {
+
+                            private int mPointer = 0;
+
+                            @Override
+                            public boolean hasNext() {
+                                return mPointer < mValues.size();
+                            }
+
+                            @Override
+                            public Map.Entry<Object, Object> next() {
+                                if (mPointer >= mValues.size()) {
+                                    throw new NoSuchElementException();
+                                }
+
+                                mPointer += 2;
+
+                                return new LazyEntry(mValues, mPointer - 2);
+                            }
+
+                            @Override
+                            public void remove() {
+                                throw new UnsupportedOperationException();
+                            }
+                        };
+                    }
+
+                    @Override
+                    public int size() {
+                        return LazyMap.this.size();
+                    }
+                };
+            }
+
+            return mEntries;
+        }
+    }
+
+    /**
+     * An entry of a {@link LazyMap}, which only decodes the part of it that is requested
+     *
+     * @ignore
+     */
+    private static final class LazyEntry implements Map.Entry<Object, Object> {
+
+        /** @ignore */
+        private final LazyValues mValues;
+
+        /** @ignore */
+        private final int mIndex;
+
+        /**
+         *
+         */
+        public LazyEntry(LazyValues values, int index) {
+            mValues = values;
+            mIndex = index;
+        }
+
+        /**
+         *
+         */
+        @Override
+        public Object getKey() {
+            return mValues.get(mIndex);
+        }
+
+        /**
+         *
+         */
+        @Override
+        public Object getValue() {
+            return mValues.get(mIndex + 1);
+        }
+
+        /**
+         *
+         */
+        @Override
+        public Object setValue(Object value) {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         *
+         */
+        @Override
+        public boolean equals(Object other) {
+            if (other instanceof Map.Entry) {
+                Object key = getKey();
+                Object value = getValue();
+                Map.Entry<?, ?> entry = (Map.Entry<?, ?>) other;
+
+                return (key == null ? entry.getKey() == null : key.equals(entry.getKey()))
+                        && (value == null ? entry.getValue() == null : value.equals(entry.getValue()));
             }
 
-        } else {
-            writeInt(-1);
+            return false;
+        }
+
+        /**
+         *
+         */
+        @Override
+        public int hashCode() {
+            Object key = getKey();
+            Object value = getValue();
+
+            return (key == null ? 0 : key.hashCode()) ^ (value == null ? 0 : value.hashCode());
+        }
+
+        /**
+         *
+         */
+        @Override
+        public String toString() {
+            return getKey() + "=" + getValue();
         }
     }
 
     /**
+     * A byte stream that can be reused and gives access to its buffer without copying it
      *
+     * @ignore
      */
-    public Set<?> readSet() {
-        int N = readInt();
+    private static final class BlobStream extends ByteArrayOutputStream {
 
-        if (N >= 0) {
-            Set<Object> out = new SwiftSet<Object>();
-            for (int i=0; i < N; i++) {
-                out.add(readValue());
+        /**
+         *
+         */
+        public BlobStream() {
+            super(INITIAL_CAPACITY * 4);
+        }
+
+        /**
+         *
+         */
+        public byte[] getBuffer() {
+            return buf;
+        }
+    }
+
+    /**
+     * An input stream reading the remaining data of a byte buffer
+     *
+     * @ignore
+     */
+    private static final class BufferStream extends InputStream {
+
+        /** @ignore */
+        private final ByteBuffer mBuffer;
+
+        /**
+         *
+         */
+        public BufferStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        /**
+         *
+         */
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? mBuffer.get() & 0xFF : -1;
+        }
+
+        /**
+         *
+         */
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (length > 0 && !mBuffer.hasRemaining()) {
+                return -1;
             }
 
-            return out;
+            length = Math.min(length, mBuffer.remaining());
+            mBuffer.get(buffer, offset, length);
+
+            return length;
         }
 
-        return null;
-    }
+        /**
+         *
+         */
+        @Override
+        public long skip(long count) {
+            int length = (int) Math.max(0, Math.min(count, mBuffer.remaining()));
 
+            mBuffer.position(mBuffer.position() + length);
 
-    /* =============================================================
-     * -------------------------------------------------------------
-     * AUTOMATIC
+            return length;
+        }
+
+        /**
+         *
+         */
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+    }
+
+    /**
+     * Thrown internally when a value continues past the end of the available data
+     *
+     * @ignore
      */
+    private static final class Underflow extends RuntimeException {
+
+        /** @ignore */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         *
+         */
+        public Underflow() {
+            super("The marshalled data ends in the middle of a value");
+        }
+    }
 
     /**
+     * Decodes the textual format in a single pass. Input can be given in chunks of any size,
+     * values are validated and written to the marshal as soon as each token is complete.
      *
+     * @ignore
      */
-    public Object readValue() {
-        int type = readInt();
+    private final class TextDecoder {
 
-        switch (type) {
-            case TYPE_NULL:
-                return null;
+        /** @ignore */
+        private static final int STATE_VERSION = 0;
 
-            case TYPE_MARSHALABLE:
-                return readMarshalable();
+        /** @ignore */
+        private static final int STATE_TOKEN = 1;
 
-            case TYPE_MARSHALABLEARRAY:
-                return readMarshalableArray();
+        /** @ignore */
+        private static final int STATE_NUMBER = 2;
 
-            case TYPE_STRING:
-                return readString();
+        /** @ignore */
+        private static final int STATE_ITEM = 3;
 
-            case TYPE_STRINGARRAY:
-                return readStringArray();
+        /** @ignore */
+        private static final int STATE_SUFFIX = 4;
 
-            case TYPE_INTEGER:
-                return readInt();
+        /** @ignore */
+        private static final int STATE_STRING = 5;
 
-            case TYPE_INTEGERARRAY:
-                return readIntArray();
+        /** @ignore */
+        private static final int STATE_ESCAPE = 6;
 
-            case TYPE_LONG:
-                return readLong();
+        /** @ignore */
+        private static final int STATE_UNICODE = 7;
 
-            case TYPE_LONGARRAY:
-                return readLongArray();
+        /** @ignore */
+        private static final int STATE_DEFINE = 8;
 
-            case TYPE_DOUBLE:
-                return readDouble();
+        /** @ignore */
+        private static final int KIND_INTEGER = 1;
 
-            case TYPE_DOUBLEARRAY:
-                return readDoubleArray();
+        /** @ignore */
+        private static final int KIND_DECIMAL = 2;
 
-            case TYPE_FLOAT:
-                return readFloat();
+        /** @ignore */
+        private static final int KIND_BITS = 3;
 
-            case TYPE_FLOATARRAY:
-                return readFloatArray();
+        /** @ignore */
+        private int mState = STATE_VERSION;
 
-            case TYPE_BOOLEAN:
-                return readInt() > 0;
+        /** @ignore */
+        private long mPosition = 0;
 
-            case TYPE_BOOLEANARRAY:
-                int size = readInt();
-                boolean[] ret = new boolean[size];
+        /** @ignore */
+        private int mDigits = 0;
 
-                for (int i=0; i < size; i++) {
-                    ret[i] = readInt() > 0;
+        /** @ignore */
+        private boolean mNegative;
+
+        /** @ignore */
+        private boolean mOverflow;
+
+        /** @ignore */
+        private long mValue;
+
+        /** @ignore */
+        private int mKind;
+
+        /** @ignore */
+        private final StringBuilder mDecimal = new StringBuilder();
+
+        /** @ignore */
+        private final StringBuilder mString = new StringBuilder();
+
+        /** @ignore */
+        private byte mStringType;
+
+        /** @ignore */
+        private boolean mArray = false;
+
+        /** @ignore */
+        private int mItemKind;
+
+        /** @ignore */
+        private int mItemDigits;
+
+        /** @ignore */
+        private int mItemCount;
+
+        /** @ignore */
+        private long[] mItems = new long[16];
+
+        /**
+         *
+         */
+        public void decode(char[] buffer, int offset, int length) {
+            for (int i=offset, end=offset+length; i < end; i++, mPosition++) {
+                char c = buffer[i];
+
+                switch (mState) {
+                    case STATE_VERSION:
+                        if (c >= '0' && c <= '9' && mValue < Integer.MAX_VALUE / 10) {
+                            mValue = (mValue * 10) + (c - '0');
+                            mDigits++;
+
+                        } else if (c == ':' && mDigits > 0) {
+                            checkVersion((int) mValue);
+                            mState = STATE_TOKEN;
+
+                        } else {
+                            fail(c);
+                        }
+
+                        break;
+
+                    case STATE_TOKEN:
+                        if ((c >= '0' && c <= '9') || c == '-' || c == 'x') {
+                            beginNumber(c);
+
+                        } else if (c == '[') {
+                            mArray = true;
+                            mItemCount = 0;
+                            mItemKind = 0;
+                            mItemDigits = 0;
+                            mState = STATE_ITEM;
+
+                        } else if (c == '"') {
+                            mString.setLength(0);
+                            mStringType = WIRE_STRING;
+                            mState = STATE_STRING;
+
+                        } else if (c == '=') {
+                            mState = STATE_DEFINE;
+
+                        } else if (c == '{') {
+                            writeMarker(WIRE_BEGIN);
+
+                        } else if (c == '}') {
+                            writeMarker(WIRE_END);
+
+                        } else if (!Character.isWhitespace(c)) {
+                            fail(c);
+                        }
+
+                        break;
+
+                    case STATE_ITEM:
+                        if ((c >= '0' && c <= '9') || c == '-' || c == 'x') {
+                            beginNumber(c);
+
+                        } else if (c == ']' && mItemCount == 0) {
+                            mState = STATE_SUFFIX;
+
+                        } else {
+                            fail(c);
+                        }
+
+                        break;
+
+                    case STATE_NUMBER:
+                        if (mKind == KIND_BITS && ((c >= '0' && c <= '9') || (c >= 'A' && c <= 'F'))) {
+                            appendBits(c);
+
+                        } else if (c >= '0' && c <= '9') {
+                            appendDigit(c);
+
+                        } else if (mKind != KIND_BITS && (c == '.' || c == 'E' || c == 'e' || ((c == '+' || c == '-') && mKind == KIND_DECIMAL))) {
+                            appendDecimal(c);
+
+                        } else if (mArray && (c == ',' || c == ']')) {
+                            endItem(c);
+                            mState = c == ',' ? STATE_ITEM : STATE_SUFFIX;
+
+                        } else if (!mArray) {
+                            writeScalar(c);
+                            mState = STATE_TOKEN;
+
+                        } else {
+                            fail(c);
+                        }
+
+                        break;
+
+                    case STATE_SUFFIX:
+                        writeArray(c);
+
+                        mArray = false;
+                        mState = STATE_TOKEN;
+
+                        break;
+
+                    case STATE_STRING:
+                        if (c == '\\') {
+                            mState = STATE_ESCAPE;
+
+                        } else if (c == '"') {
+                            writeChars(mString, mStringType);
+                            mState = STATE_TOKEN;
+
+                        } else {
+                            mString.append(c);
+                        }
+
+                        break;
+
+                    case STATE_ESCAPE:
+                        if (c == 'u') {
+                            mValue = 0;
+                            mDigits = 0;
+                            mState = STATE_UNICODE;
+
+                        } else if (c == '"' || c == '\\') {
+                            mString.append(c);
+                            mState = STATE_STRING;
+
+                        } else {
+                            fail(c);
+                        }
+
+                        break;
+
+                    case STATE_DEFINE:
+                        if (c != '"') {
+                            fail(c);
+                        }
+
+                        mString.setLength(0);
+                        mStringType = WIRE_DEFINE;
+                        mState = STATE_STRING;
+
+                        break;
+
+                    case STATE_UNICODE:
+                        if ((c >= '0' && c <= '9') || (c >= 'A' && c <= 'F')) {
+                            mValue = (mValue << 4) | (c <= '9' ? c - '0' : c - 'A' + 10);
+
+                            if (++mDigits == 4) {
+                                mString.append((char) mValue);
+                                mState = STATE_STRING;
+                            }
+
+                        } else {
+                            fail(c);
+                        }
                 }
+            }
+        }
 
-                return ret;
+        /**
+         * Make sure that the input did not end in the middle of a token
+         */
+        public void finish() {
+            if (mState != STATE_TOKEN && (mState != STATE_VERSION || mPosition > 0)) {
+                throw new RuntimeException("The given data is not a valid marshalled string, it ends in the middle of a value");
+            }
 
-            case TYPE_BYTE:
-                return readByte();
+            mPointer = 0;
+        }
 
-            case TYPE_BYTEARRAY:
-                return readByteArray();
+        /**
+         *
+         */
+        private void fail(char c) {
+            throw new RuntimeException("The given data is not a valid marshalled string, unexpected '" + c + "' at position " + mPosition);
+        }
 
-            case TYPE_CHAR:
-                return readChar();
+        /**
+         *
+         */
+        private void beginNumber(char c) {
+            mNegative = c == '-';
+            mOverflow = false;
+            mValue = 0;
+            mDigits = 0;
+            mKind = c == 'x' ? KIND_BITS : KIND_INTEGER;
+            mState = STATE_NUMBER;
+
+            if (!mNegative && mKind == KIND_INTEGER) {
+                appendDigit(c);
+            }
+        }
 
-            case TYPE_CHARARRAY:
-                return readCharArray();
+        /**
+         *
+         */
+        private void appendBits(char c) {
+            if (mDigits == 16) {
+                fail(c);
+            }
 
-            case TYPE_OBJECTARRAY:
-                return readArray();
+            mValue = (mValue << 4) | (c <= '9' ? c - '0' : c - 'A' + 10);
+            mDigits++;
+        }
 
-            case TYPE_LIST:
-                return readList();
+        /**
+         * Digits are accumulated as a negative value, the same way as {@link Long#parseLong(String)},
+         * to be able to represent {@link Long#MIN_VALUE}
+         */
+        private void appendDigit(char c) {
+            int digit = c - '0';
 
-            case TYPE_MAP:
-                return readMap();
+            if (mKind == KIND_DECIMAL) {
+                mDecimal.append(c);
 
-            case TYPE_SET:
-                return readSet();
+            } else if (mValue < Long.MIN_VALUE / 10 || mValue * 10 < Long.MIN_VALUE + digit) {
+                mOverflow = true;
 
-            case TYPE_SERIALIZEABLE:
-                return readSerializable();
+            } else {
+                mValue = (mValue * 10) - digit;
+            }
 
-            case TYPE_SERIALIZEABLEARRAY:
-                return readSerializableArray();
+            mDigits++;
+        }
 
-            default:
-                return null;
+        /**
+         *
+         */
+        private void appendDecimal(char c) {
+            if (mKind != KIND_DECIMAL) {
+                mDecimal.setLength(0);
+
+                if (mNegative) {
+                    mDecimal.append('-');
+                }
+
+                if (mDigits > 0) {
+                    mDecimal.append(-mValue);
+                }
+
+                mKind = KIND_DECIMAL;
+            }
+
+            mDecimal.append(c);
         }
-    }
 
-    /**
-     *
-     */
-    public void writeValue(Object data) {
-        if (data == null) {
-            writeInt(TYPE_NULL);
+        /**
+         *
+         */
+        private long integerValue(char c) {
+            if (mKind != KIND_INTEGER || mDigits == 0 || mOverflow || (!mNegative && mValue == Long.MIN_VALUE)) {
+                fail(c);
+            }
+
+            return mNegative ? mValue : -mValue;
+        }
+
+        /**
+         *
+         */
+        private double decimalValue(char c) {
+            if (mKind == KIND_BITS && mDigits == 16) {
+                return Double.longBitsToDouble(mValue);
+
+            } else if (mKind != KIND_DECIMAL) {
+                fail(c);
+            }
+
+            try {
+                return Double.parseDouble(mDecimal.toString());
+
+            } catch (NumberFormatException e) {
+                fail(c); return 0;
+            }
+        }
+
+        /**
+         *
+         */
+        private void writeScalar(char c) {
+            long value;
 
-        } else if (data instanceof Marshalable) {
-            writeInt(TYPE_MARSHALABLE);
-            writeMarshalable((Marshalable) data);
+            switch (c) {
+                case 'i':
+                    value = integerValue(c);
 
-        } else if (data instanceof Marshalable[]) {
-            writeInt(TYPE_MARSHALABLEARRAY);
-            writeMarshalableArray((Marshalable[]) data);
+                    if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+                        fail(c);
+                    }
+
+                    writeInt((int) value); break;
+
+                case 'l':
+                    writeLong(integerValue(c)); break;
+
+                case 'b':
+                    if (mNegative) {
+                        fail(c);
+                    }
+
+                    writeByte((byte) (integerValue(c) & 0xFF)); break;
+
+                case 'c':
+                    if (mNegative) {
+                        fail(c);
+                    }
 
-        } else if (data instanceof String) {
-            writeInt(TYPE_STRING);
-            writeString((String) data);
+                    writeChar((char) (integerValue(c) & 0xFFFF)); break;
 
-        } else if (data instanceof String[]) {
-            writeInt(TYPE_STRINGARRAY);
-            writeStringArray((String[]) data);
+                case 'f':
+                    if (mKind == KIND_BITS && mDigits == 8) {
+                        writeFloat(Float.intBitsToFloat((int) mValue)); break;
 
-        } else if (data instanceof Integer) {
-            writeInt(TYPE_INTEGER);
-            writeInt((Integer) data);
+                    } else if (mKind != KIND_DECIMAL) {
+                        fail(c);
+                    }
+
+                    try {
+                        writeFloat(Float.parseFloat(mDecimal.toString()));
+
+                    } catch (NumberFormatException e) {
+                        fail(c);
+                    }
 
-        } else if (data instanceof int[]) {
-            writeInt(TYPE_INTEGERARRAY);
-            writeIntArray((int[]) data);
+                    break;
+
+                case 'd':
+                    writeDouble(decimalValue(c)); break;
+
+                case 'r':
+                case 'p':
+                case 't':
+                    value = integerValue(c);
+
+                    if (value < 0 || value > Integer.MAX_VALUE) {
+                        fail(c);
+                    }
 
-        } else if (data instanceof Long) {
-            writeInt(TYPE_LONG);
-            writeLong((Long) data);
+                    int pos = reserve(1 + sizeOfVarInt((int) value));
 
-        } else if (data instanceof long[]) {
-            writeInt(TYPE_LONGARRAY);
-            writeLongArray((long[]) data);
+                    mBuffer.put(pos, c == 'r' ? WIRE_REFERENCE : c == 'p' ? WIRE_BACKREF : WIRE_FIELD);
+                    putVarInt(pos + 1, (int) value);
 
-        } else if (data instanceof Double) {
-            writeInt(TYPE_DOUBLE);
-            writeDouble((Double) data);
+                    if (c == 'p') {
+                        mShared = true;
+                    }
 
-        } else if (data instanceof double[]) {
-            writeInt(TYPE_DOUBLEARRAY);
-            writeDoubleArray((double[]) data);
+                    break;
 
-        } else if (data instanceof Float) {
-            writeInt(TYPE_FLOAT);
-            writeFloat((Float) data);
+                case 's':
+                case 'g':
+                    value = integerValue(c);
 
-        } else if (data instanceof float[]) {
-            writeInt(TYPE_FLOATARRAY);
-            writeFloatArray((float[]) data);
+                    if (value < 0 || value > Integer.MAX_VALUE) {
+                        fail(c);
+                    }
 
-        } else if (data instanceof Boolean) {
-            writeInt(TYPE_BOOLEAN);
-            writeInt(((Boolean) data) ? 1 : 0);
+                    writeSpan(c == 's' ? WIRE_SPAN : WIRE_SEGMENT, (int) value); break;
 
-        } else if (data instanceof boolean[]) {
-            boolean[] arr = (boolean[]) data;
+                default:
+                    fail(c);
+            }
+        }
 
-            writeInt(TYPE_BOOLEANARRAY);
-            writeInt(arr.length);
+        /**
+         *
+         */
+        private void endItem(char c) {
+            if ((mItemKind != 0 && mItemKind != mKind) || (mKind == KIND_BITS && (mDigits != 8 && mDigits != 16 || (mItemDigits != 0 && mItemDigits != mDigits)))) {
+                fail(c);
+            }
 
-            for (int i=0; i < arr.length; i++) {
-                writeInt(arr[i] ? 1 : 0);
+            if (mItemCount == mItems.length) {
+                long[] items = new long[(int) (mItems.length * BUFFER_RESIZE) + 1];
+                System.arraycopy(mItems, 0, items, 0, mItemCount);
+                mItems = items;
             }
 
-        } else if (data instanceof Byte) {
-            writeInt(TYPE_BYTE);
-            writeByte((Byte) data);
+            mItemKind = mKind;
+            mItemDigits = mDigits;
+            mItems[mItemCount++] = mKind == KIND_BITS ? mValue : mKind == KIND_DECIMAL ? Double.doubleToRawLongBits(decimalValue(c)) : integerValue(c);
+        }
+
+        /**
+         *
+         */
+        private void writeArray(char c) {
+            boolean decimal = mItemKind == KIND_DECIMAL || mItemKind == KIND_BITS;
+            boolean bits = mItemKind == KIND_BITS;
+            int pos;
+
+            switch (c) {
+                case 'i':
+                    pos = reserveArray(WIRE_INTARRAY, mItemCount, 4);
 
-        } else if (data instanceof byte[]) {
-            writeInt(TYPE_BYTEARRAY);
-            writeByteArray((byte[]) data);
+                    for (int i=0; i < mItemCount; i++, pos += 4) {
+                        if (decimal || mItems[i] < Integer.MIN_VALUE || mItems[i] > Integer.MAX_VALUE) {
+                            fail(c);
+                        }
 
-        } else if (data instanceof Character) {
-            writeInt(TYPE_CHAR);
-            writeChar((Character) data);
+                        mBuffer.putInt(pos, (int) mItems[i]);
+                    }
 
-        } else if (data instanceof char[]) {
-            writeInt(TYPE_CHARARRAY);
-            writeCharArray((char[]) data);
+                    break;
 
-        } else if (data instanceof List) {
-            writeInt(TYPE_LIST);
-            writeList((List<?>) data);
+                case 'l':
+                    pos = reserveArray(WIRE_LONGARRAY, mItemCount, 8);
 
-        } else if (data instanceof Map) {
-            writeInt(TYPE_MAP);
-            writeMap((Map<?,?>) data);
+                    for (int i=0; i < mItemCount; i++, pos += 8) {
+                        if (decimal) {
+                            fail(c);
+                        }
 
-        } else if (data instanceof Set) {
-            writeInt(TYPE_SET);
-            writeSet((Set<?>) data);
+                        mBuffer.putLong(pos, mItems[i]);
+                    }
 
-        } else if (data instanceof Serializable) {
-            writeInt(TYPE_SERIALIZEABLE);
-            writeSerializable((Serializable) data);
+                    break;
 
-        } else if (data instanceof Serializable[]) {
-            writeInt(TYPE_SERIALIZEABLEARRAY);
-            writeSerializableArray((Serializable[]) data);
+                case 'f':
+                    pos = reserveArray(WIRE_FLOATARRAY, mItemCount, 4);
 
-        } else {
-            Class<?> clazz = data.getClass();
-            if (clazz.isArray() && clazz.getComponentType() == Object.class) {
-                writeInt(TYPE_OBJECTARRAY);
-                writeArray((Object[]) data);
+                    for (int i=0; i < mItemCount; i++, pos += 4) {
+                        if (!decimal || (bits && mItemDigits != 8)) {
+                            fail(c);
 
-            } else {
-                writeInt(TYPE_NULL);
+                        } else if (bits) {
+                            mBuffer.putInt(pos, (int) mItems[i]);
+
+                        } else {
+                            mBuffer.putFloat(pos, (float) Double.longBitsToDouble(mItems[i]));
+                        }
+                    }
+
+                    break;
+
+                case 'd':
+                    pos = reserveArray(WIRE_DOUBLEARRAY, mItemCount, 8);
+
+                    for (int i=0; i < mItemCount; i++, pos += 8) {
+                        if (!decimal || (bits && mItemDigits != 16)) {
+                            fail(c);
+                        }
+
+                        mBuffer.putLong(pos, mItems[i]);
+                    }
+
+                    break;
+
+                case 'b':
+                    pos = reserveArray(WIRE_BYTEARRAY, mItemCount, 1);
+
+                    for (int i=0; i < mItemCount; i++, pos += 1) {
+                        if (decimal || mItems[i] < 0) {
+                            fail(c);
+                        }
+
+                        mBuffer.put(pos, (byte) (mItems[i] & 0xFF));
+                    }
+
+                    break;
+
+                case 'c':
+                    pos = reserveArray(WIRE_CHARARRAY, mItemCount, 2);
+
+                    for (int i=0; i < mItemCount; i++, pos += 2) {
+                        if (decimal || mItems[i] < 0) {
+                            fail(c);
+                        }
+
+                        mBuffer.putChar(pos, (char) (mItems[i] & 0xFFFF));
+                    }
+
+                    break;
+
+                default:
+                    fail(c);
             }
         }
     }
 }
-
@@ -0,0 +1,18 @@
+package com.spazedog.lib.utilsLib.marshalling;
+
+/**
+ * Writes and restores values of a type that does not implement {@link Marshalable}.
+ * Register it using {@link Marshal#registerAdapter(Class, MarshalAdapter)}
+ */
+public interface MarshalAdapter<T> {
+
+    /**
+     *
+     */
+    void writeToMarshal(Marshal dest, T value);
+
+    /**
+     *
+     */
+    T readFromMarshal(Marshal source);
+}
@@ -0,0 +1,28 @@
+package com.spazedog.lib.utilsLib.marshalling;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Compresses the binary output of a {@link Marshal} one block at a time.
+ * Use it with {@link Marshal#setCompressor(MarshalCompressor)}. Readers detect compression
+ * from the header, custom compressors must be registered using {@link Marshal#registerCompressor(MarshalCompressor)}
+ * before such data can be read.
+ */
+public interface MarshalCompressor {
+
+    /**
+     * Identifies the compressor in the header. Ids below 128 are reserved for the built-in compressors.
+     */
+    int getId();
+
+    /**
+     *
+     */
+    void compress(byte[] input, int offset, int length, OutputStream output) throws IOException;
+
+    /**
+     * Restore a block, the original length of the block is given by {@code outputLength}
+     */
+    void decompress(byte[] input, int offset, int length, byte[] output, int outputOffset, int outputLength) throws IOException;
+}
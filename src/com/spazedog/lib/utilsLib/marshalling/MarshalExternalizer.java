@@ -0,0 +1,24 @@
+package com.spazedog.lib.utilsLib.marshalling;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+
+/**
+ * Replaces Java serialization for {@link Serializable} values written to a {@link Marshal}.
+ * The same externalizer must be used when the data is read back.
+ * Set it using {@link Marshal#setExternalizer(MarshalExternalizer)}
+ */
+public interface MarshalExternalizer {
+
+    /**
+     *
+     */
+    void writeObject(Serializable value, OutputStream output) throws IOException;
+
+    /**
+     *
+     */
+    Serializable readObject(InputStream input) throws IOException, ClassNotFoundException;
+}
@@ -14,4 +14,17 @@ public interface Marshalable {
      *
      */
     String getMarshalSignature();
+
+    /**
+     * Creates instances of a {@link Marshalable} type without going through its constructor reflectively.
+     * Expose it as a public static {@code CREATOR} field on the type, or register it
+     * using {@link Marshal#registerCreator(Class, Creator)}
+     */
+    interface Creator<T extends Marshalable> {
+
+        /**
+         *
+         */
+        T createFromMarshal(Marshal source);
+    }
 }